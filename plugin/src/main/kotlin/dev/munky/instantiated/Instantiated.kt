@@ -13,8 +13,10 @@ import dev.munky.instantiated.dungeon.DungeonManager
 import dev.munky.instantiated.dungeon.DungeonManagerImpl
 import dev.munky.instantiated.dungeon.EventManager
 import dev.munky.instantiated.dungeon.TaskManager
+import dev.munky.instantiated.dungeon.checkpoint.CheckpointManager
 import dev.munky.instantiated.dungeon.component.TraitContext
 import dev.munky.instantiated.dungeon.interfaces.Format
+import dev.munky.instantiated.dungeon.interfaces.Instance
 import dev.munky.instantiated.dungeon.interfaces.RoomInstance
 import dev.munky.instantiated.edit.BlockDisplayRenderer
 import dev.munky.instantiated.edit.EditModeHandler
@@ -79,6 +81,7 @@ class Instantiated : InstantiatedPlugin() {
             singleOf<TaskManager>(::TaskManager)
             singleOf<DungeonManager>(::DungeonManagerImpl)
             singleOf<DungeonCommand>(::DungeonCommand)
+            singleOf<CheckpointManager>(::CheckpointManager)
 
             singleOf<FormatStorage>(::FormatStorage)
             singleOf<FormatLoader>(::FormatLoader)
@@ -156,6 +159,7 @@ class Instantiated : InstantiatedPlugin() {
                 singleOf<UnitTesting>(::UnitTesting)
             })
             get<UnitTesting>().start()
+            get<UnitTesting>().benchmark()
         }
 
         if (weOwnCommandAPI) CommandAPI.onEnable()
@@ -268,6 +272,13 @@ object InstantiatedAPI: KoinComponent {
         get<DungeonManager>().startInstance(name, Format.InstanceOption.CONSUME_CACHE, uuids)
     }
 
+    /**
+     * Writes a checkpoint of every instance with players in it, for example before a restart.
+     * @return the checkpoint files, which are written asynchronously
+     */
+    fun checkpointAll(): List<File> = get<CheckpointManager>().saveAll()
+    fun restoreCheckpoint(id: String): Result<Instance> = get<CheckpointManager>().restore(id)
+
     fun startEditModeFor(player: Player) = get<EditModeHandler>().startEditModeFor(player)
     fun stopEditModeFor(player: Player) = get<EditModeHandler>().stopEditModeFor(player)
 
@@ -2,6 +2,8 @@ package dev.munky.instantiated
 
 import dev.munky.instantiated.common.structs.IdType
 import dev.munky.instantiated.common.util.formatException
+import dev.munky.instantiated.data.DungeonIntraData
+import dev.munky.instantiated.data.IntraEntry
 import dev.munky.instantiated.dungeon.DungeonManager
 import dev.munky.instantiated.dungeon.component.DoorComponent
 import dev.munky.instantiated.dungeon.component.trait.SetBlocksTrait
@@ -16,6 +18,7 @@ import org.joml.Vector3i
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.get
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 
 private inline fun test(es: MutableMap<String, Exception>, name: String, block: () -> Unit){
     try {
@@ -69,10 +72,57 @@ class UnitTesting: KoinComponent {
                 str1.contains(str2) || str2.contains(str1)
             }) {"question does not contain trait"}
         }
+        test(results, "intra-data"){
+            val slotted = object : DungeonIntraData<Int>() {
+                override fun idOf(subject: Int): Int = subject
+            }
+            for (s in 0 until 100) for (e in INTRA_ENTRIES) slotted.setIntraData(s, e, s + e.ordinal)
+            for (s in 0 until 100) check(slotted.getIntraData(s, INTRA_ENTRIES[3]) == s + INTRA_ENTRIES[3].ordinal) { "slot value mismatch" }
+            check(slotted.removeIntraData(0, INTRA_ENTRIES[0]) == INTRA_ENTRIES[0].ordinal && !slotted.hasIntraData(0, INTRA_ENTRIES[0])) { "remove did not clear the slot" }
+            slotted.forget(1)
+            check(!slotted.hasIntraData(1, INTRA_ENTRIES[1])) { "forget did not clear the subject" }
+        }
         test(results, "cleanup"){
             testInst?.remove(Instance.RemovalReason.FORMAT_CHANGE, false) ?: run {
                 plugin.logger.test("Instancing must have failed if the property is null")
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Times intra data lookups against the "uuid:key" string map it replaced. Kept apart from [start] so the checks do not
+     * pay for it, and it only logs, it never fails.
+     */
+    fun benchmark(){
+        val subjects = 2_000
+        val uuids = Array(subjects) { UUID.randomUUID() }
+        val slotted = object : DungeonIntraData<Int>() {
+            override fun idOf(subject: Int): Int = subject
+        }
+        val keyed = ConcurrentHashMap<String, Int>()
+        for (s in 0 until subjects) for (e in INTRA_ENTRIES) {
+            slotted.setIntraData(s, e, s + e.ordinal)
+            keyed["${uuids[s]}:${e.key}"] = s + e.ordinal
+        }
+        var sink = 0L
+        val slottedLookups = {
+            for (s in 0 until subjects) for (e in INTRA_ENTRIES) sink += slotted.getIntraData(s, e)!!
+        }
+        val keyedLookups = {
+            for (s in 0 until subjects) for (e in INTRA_ENTRIES) sink += keyed["${uuids[s]}:${e.key}"]!!
+        }
+        repeat(5) { slottedLookups(); keyedLookups() } // warm up both before timing either
+        val slottedStart = System.nanoTime()
+        repeat(20) { slottedLookups() }
+        val slottedTime = System.nanoTime() - slottedStart
+        val keyedStart = System.nanoTime()
+        repeat(20) { keyedLookups() }
+        val keyedTime = System.nanoTime() - keyedStart
+        plugin.logger.test("Intra data lookups: slots ${slottedTime / 1_000_000.0}ms, string keys ${keyedTime / 1_000_000.0}ms ($sink)")
+    }
+
+    private companion object {
+        // ordinals are never given back, so the same entries are used by every run of the checks and the benchmark
+        val INTRA_ENTRIES = List(4) { IntraEntry<Int>("unit-test-$it") }
+    }
+}
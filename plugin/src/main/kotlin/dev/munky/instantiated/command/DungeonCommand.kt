@@ -16,9 +16,16 @@ import dev.munky.instantiated.common.util.log
 import dev.munky.instantiated.data.config.TheConfig
 import dev.munky.instantiated.data.loader.*
 import dev.munky.instantiated.dungeon.DungeonManager
+import dev.munky.instantiated.dungeon.checkpoint.CheckpointManager
+import dev.munky.instantiated.dungeon.currentDungeon
 import dev.munky.instantiated.dungeon.component.TraitContext
 import dev.munky.instantiated.dungeon.interfaces.Format
+import dev.munky.instantiated.dungeon.lifecycle.LifecycleMetrics
 import dev.munky.instantiated.dungeon.lobby.LobbyFormat
+import dev.munky.instantiated.dungeon.lobby.LobbyInstance
+import dev.munky.instantiated.dungeon.mob.DungeonMobRegistry
+import dev.munky.instantiated.dungeon.mob.MobSpawnQueue
+import dev.munky.instantiated.dungeon.mob.MobTemplates
 import dev.munky.instantiated.dungeon.procedural.ProceduralFormat
 import dev.munky.instantiated.dungeon.sstatic.StaticFormat
 import dev.munky.instantiated.edit.EditModeHandler
@@ -27,6 +34,7 @@ import dev.munky.instantiated.plugin
 import dev.munky.instantiated.util.commandFail
 import dev.munky.instantiated.util.send
 import org.bukkit.command.CommandSender
+import org.bukkit.entity.LivingEntity
 import org.bukkit.entity.Player
 import org.joml.Vector3f
 import org.koin.core.component.get
@@ -49,9 +57,91 @@ class DungeonCommand {
             .startCommand(manager)
             .invokeComponentCommand(componentStorage)
             .leaveCommand(manager)
+            .routeCommand()
             .editCommand(editModeHandler)
             .createDungeonCommand()
             .setDebugCommand()
+            .checkpointCommand(plugin.get<CheckpointManager>())
+            .mobTemplateCommand()
+            .metricsCommand(manager)
+    }
+
+    private fun CommandTree.metricsCommand(manager: DungeonManager): CommandTree {
+        return this.then(LiteralArgument("metrics")
+            .executes(CommandExecutor { sender, _ ->
+                val current = manager.instances.groupingBy { it.lifecycle.state }.eachCount()
+                caption("command.metrics.header").send(sender)
+                for ((state, metric) in LifecycleMetrics.snapshot()) {
+                    caption(
+                        "command.metrics.state",
+                        state.name.lowercase(),
+                        current[state] ?: 0,
+                        metric.count,
+                        metric.failures,
+                        "%.2f".format(metric.averageMillis),
+                        "%.2f".format(metric.maxMillis)
+                    ).send(sender)
+                }
+                caption(
+                    "command.metrics.mobs",
+                    DungeonMobRegistry.totalLiving,
+                    plugin.get<TheConfig>().mobLimitGlobal.value,
+                    MobSpawnQueue.size
+                ).send(sender)
+            })
+        )
+    }
+
+    private fun CommandTree.checkpointCommand(checkpoints: CheckpointManager): CommandTree {
+        return this.then(LiteralArgument("checkpoint")
+            .withPermission(CommandPermission.OP)
+            .then(LiteralArgument("save")
+                .executesPlayer(PlayerCommandExecutor { player, _ ->
+                    val instance = player.currentDungeon ?: caption("command.leave.single.not_in_dungeon").commandFail()
+                    val file = checkpoints.save(instance).getOrElse {
+                        it.log("Error trying to checkpoint dungeon")
+                        caption("command.checkpoint.failure", it.message).commandFail()
+                    }
+                    caption("command.checkpoint.save.success", file.nameWithoutExtension).send(player)
+                })
+            )
+            .then(LiteralArgument("save-all")
+                .executes(CommandExecutor { sender, _ ->
+                    caption("command.checkpoint.save.success", checkpoints.saveAll().map { it.nameWithoutExtension }).send(sender)
+                })
+            )
+            .then(LiteralArgument("restore")
+                .then(TextArgument("id").replaceSuggestions(ArgumentSuggestions.strings { checkpoints.checkpoints.toTypedArray() })
+                    .executes(CommandExecutor { sender, args ->
+                        val id = args["id"] as String
+                        val instance = checkpoints.restore(id).getOrElse {
+                            it.log("Error trying to restore checkpoint")
+                            caption("command.checkpoint.failure", it.message).commandFail()
+                        }
+                        caption("command.checkpoint.restore.success", id, instance.identifier.key).send(sender)
+                    })
+                )
+            )
+        )
+    }
+
+    private fun CommandTree.mobTemplateCommand(): CommandTree {
+        return this.then(LiteralArgument("mob")
+            .withPermission(CommandPermission.OP)
+            .then(LiteralArgument("template")
+                .then(StringArgument("mob").replaceSuggestions(ArgumentSuggestions.strings {
+                    plugin.get<MobStorage>().keys.map { it.key }.toTypedArray()
+                })
+                    .executesPlayer(PlayerCommandExecutor { player, args ->
+                        val id = IdType.MOB with (args["mob"] as String)
+                        plugin.get<MobStorage>().getById(id) ?: caption("command.mob.not_found", id.key).commandFail()
+                        val target = player.getTargetEntity(8) as? LivingEntity ?: caption("command.mob.template.no_target").commandFail()
+                        if (!MobTemplates.capture(id, target)) caption("command.mob.template.failure", target.type.key.key).commandFail()
+                        caption("command.mob.template.success", target.type.key.key, id.key).send(player)
+                    })
+                )
+            )
+        )
     }
 
     private fun CommandTree.createDungeonCommand(): CommandTree {
@@ -218,6 +308,33 @@ class DungeonCommand {
         )
     }
 
+    private fun CommandTree.routeCommand(): CommandTree {
+        return this.then(LiteralArgument("route")
+            .then(ManyPlayers("players")
+                .then(DungeonArgument("dungeon")
+                    .executes(CommandExecutor { sender, args ->
+                        val dungeon = args["dungeon"] as Optional<Format>
+                        if (dungeon.isEmpty) caption("command.start.dungeon_not_found", args.rawArgsMap()["dungeon"]).commandFail()
+                        val players = args["players"] as Collection<Player>
+                        // every party any of the players are in goes, so parties are never split up
+                        val parties = players.mapNotNull { player ->
+                            val lobby = player.currentDungeon as? LobbyInstance ?: return@mapNotNull null
+                            lobby.partyOf(player.uniqueId)?.let { lobby to it }
+                        }.distinctBy { it.second.id }
+                        if (parties.isEmpty()) caption("command.route.not_in_lobby").commandFail()
+                        for ((lobby, party) in parties) {
+                            lobby.route(party, dungeon.get()).onFailure {
+                                it.log("Error trying to route party")
+                                caption("command.start.failure", it.message).commandFail()
+                            }
+                        }
+                        caption("command.route.success", parties.size, dungeon.get().identifier.key).send(sender)
+                    })
+                )
+            )
+        )
+    }
+
     private fun CommandTree.editCommand(editModeHandler: EditModeHandler): CommandTree {
         return this.then(LiteralArgument("edit")
             .executesPlayer(PlayerCommandExecutor { player, _ ->
@@ -1,35 +1,81 @@
 package dev.munky.instantiated.data
 
+import it.unimi.dsi.fastutil.HashCommon
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap
 import org.bukkit.entity.Entity
-import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 
+/**
+ * Data attached to a subject for as long as the server runs, without touching the subject itself.
+ *
+ * Each subject has a small array of slots, one per [IntraEntry] indexed by its [IntraEntry.ordinal],
+ * so reading or checking a value is a map lookup by int and an array index, with no keys to build.
+ * Subjects are spread over [STRIPES] maps by id, each with its own lock, so threads only wait on each other
+ * when they touch subjects in the same stripe. A slot array is only as long as the highest entry set on that subject.
+ */
 abstract class DungeonIntraData<T : Any> {
-    private val data = ConcurrentHashMap<String, IntraDataValue<*>>()
-    fun <V> setIntraData(subject: T, key: IntraEntry<V>, value: V) {
-        val dis = disambiguate(subject, key)
-        data[dis] = FixedIntraDataValue(value)
-    }
-    fun <V> setIntraData(subject: T, key: IntraEntry<V>, value: () -> V) {
-        val dis = disambiguate(subject, key)
-        data[dis] = LazyIntraDataValue(value)
-    }
+    // subject id mapped to its slots, split by id over the stripes
+    private val stripes = Array(STRIPES) { Int2ObjectOpenHashMap<Array<IntraDataValue<*>?>>() }
+    fun <V> setIntraData(subject: T, key: IntraEntry<V>, value: V) = set(subject, key, FixedIntraDataValue(value))
+    fun <V> setIntraData(subject: T, key: IntraEntry<V>, value: () -> V) = set(subject, key, LazyIntraDataValue(value))
     fun <V> getIntraData(subject: T, key: IntraEntry<V>): V? {
-        val dis = disambiguate(subject, key)
-        val value = data[dis]
+        val value = slot(subject, key)
         @Suppress("UNCHECKED_CAST") // enforced by the add set function
         return if (value == null) null else value() as? V ?: throw IllegalStateException("Duplicate key -> $key = $value")
     }
-    fun hasIntraData(subject: T, key: IntraEntry<*>): Boolean {
-        val dis = disambiguate(subject, key)
-        return data.containsKey(dis)
-    }
+    fun hasIntraData(subject: T, key: IntraEntry<*>): Boolean = slot(subject, key) != null
     fun <V> removeIntraData(subject: T, key: IntraEntry<V>): V? {
-        val dis = disambiguate(subject, key)
-        val value = data.remove(dis)
+        val id = idOf(subject)
+        val stripe = stripeOf(id)
+        val value = synchronized(stripe) {
+            val slots = stripe.get(id) ?: return null
+            if (key.ordinal >= slots.size) return null
+            val value = slots[key.ordinal]
+            slots[key.ordinal] = null
+            if (slots.all { it == null }) stripe.remove(id)
+            value
+        }
         @Suppress("UNCHECKED_CAST") // enforced by the add set function
         return if (value == null) null else value() as? V ?: throw IllegalStateException("Duplicate key -> $key = $value")
     }
-    protected abstract fun disambiguate(subject: T, key: IntraEntry<*>): String
+    /**
+     * Drops everything attached to [subject].
+     */
+    fun forget(subject: T) {
+        val id = idOf(subject)
+        val stripe = stripeOf(id)
+        synchronized(stripe) { stripe.remove(id) }
+    }
+    val size: Int get() = stripes.sumOf { synchronized(it) { it.size } }
+    protected abstract fun idOf(subject: T): Int
+
+    // entity ids are handed out in sequence, so mix them before picking a stripe
+    private fun stripeOf(id: Int) = stripes[HashCommon.mix(id) and (STRIPES - 1)]
+
+    private fun slot(subject: T, key: IntraEntry<*>): IntraDataValue<*>? {
+        val id = idOf(subject)
+        val stripe = stripeOf(id)
+        synchronized(stripe) {
+            val slots = stripe.get(id) ?: return null
+            return if (key.ordinal < slots.size) slots[key.ordinal] else null
+        }
+    }
+
+    private fun set(subject: T, key: IntraEntry<*>, value: IntraDataValue<*>) {
+        val id = idOf(subject)
+        val stripe = stripeOf(id)
+        synchronized(stripe) {
+            var slots = stripe.get(id)
+            if (slots == null) {
+                slots = arrayOfNulls(key.ordinal + 1)
+                stripe.put(id, slots)
+            } else if (key.ordinal >= slots.size) {
+                slots = slots.copyOf(key.ordinal + 1)
+                stripe.put(id, slots)
+            }
+            slots[key.ordinal] = value
+        }
+    }
 
     interface IntraDataValue<T>: () -> T
 
@@ -48,9 +94,14 @@ abstract class DungeonIntraData<T : Any> {
 
 private object UNINITIALIZED {}
 
+private const val STRIPES = 64 // a power of two
+
 object IntraDataStores {
+    /**
+     * Keyed by entity id, which is only valid while the entity is in a world, so entries are forgotten when it leaves one.
+     */
     object EntityIntraData: DungeonIntraData<Entity>() {
-        override fun disambiguate(subject: Entity, key: IntraEntry<*>): String = "${subject.uniqueId}:$key"
+        override fun idOf(subject: Entity): Int = subject.entityId
         fun <T> Entity.getIntraData(key: IntraEntry<T>): T? = EntityIntraData.getIntraData(this, key)
         fun Entity.hasIntraData(key: IntraEntry<*>): Boolean = EntityIntraData.hasIntraData(this, key)
         fun <T> Entity.setIntraData(key: IntraEntry<T>, value: T) = EntityIntraData.setIntraData(this, key, value)
@@ -62,5 +113,13 @@ object IntraDataStores {
 class IntraEntry<V>( // this type parameter is only for compile time type checking
     val key: String
 ){
+    /**
+     * The slot this entry uses, given out in the order entries are created
+     */
+    val ordinal: Int = NEXT_ORDINAL.getAndIncrement()
     override fun toString(): String = "IntraEntry[$key]"
+
+    companion object {
+        private val NEXT_ORDINAL = AtomicInteger()
+    }
 }
@@ -19,6 +19,7 @@ abstract class Storage<K: Identifiable, V>(
         data = HashMap()
         for (entry in entries) { register0(entry.toPair()) }
         _initializing = false
+        changed()
     }
 
     private fun register0(entry: Pair<K, V>){
@@ -32,8 +33,14 @@ abstract class Storage<K: Identifiable, V>(
         if (_initializing) return
         if (!allowPostRegister) throw UnsupportedOperationException("This storage does not allow registering outside of initialization")
         register0(entry)
+        changed()
     }
 
+    /**
+     * Called after every [load] and [register], for storages that keep something derived from their data.
+     */
+    protected open fun changed() {}
+
     fun getById(id: IdKey): V? = data[spine[id]]
 
     fun getByIdOrThrow(
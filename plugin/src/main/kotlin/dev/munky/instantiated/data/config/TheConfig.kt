@@ -84,6 +84,124 @@ class TheConfig: DataFileLoader("config.yml"){
         }
     )
 
+    val adaptiveViewDistance = ConfigurationValue(
+        "dungeon.view-distance.adaptive",
+        listOf(
+            "Whether players in an instance get a view and send distance",
+            "that only covers the instance, instead of the world's"
+        ),
+        { "Adaptive view distance is undefined" },
+        true,
+        { it as Boolean }
+    )
+
+    val perRoomViewDistance = ConfigurationValue(
+        "dungeon.view-distance.per-room",
+        listOf("Whether the adaptive view distance shrinks further to the room a player is in"),
+        { "Per room view distance is undefined" },
+        false,
+        { it as Boolean }
+    )
+
+    val viewDistancePadding = ConfigurationValue(
+        "dungeon.view-distance.padding",
+        listOf("Extra chunks added around the instance (or room) when calculating the view distance"),
+        { "View distance padding is undefined or out of bounds: ${it.message}" },
+        1,
+        {
+            val i = it as Int
+            check(i >= 0) { "Padding cannot be negative" }
+            i
+        }
+    )
+
+    val mobSpawnBudget = ConfigurationValue(
+        "dungeon.mob-spawns-per-tick",
+        listOf("The most dungeon mobs spawned in a single tick, across all instances. Any more wait for the next tick"),
+        { "Mob spawn budget is undefined or out of bounds: ${it.message}" },
+        20,
+        {
+            val i = it as Int
+            check(i >= 1) { "At least one mob has to be able to spawn per tick" }
+            i
+        }
+    )
+
+    val mobLimitPerInstance = ConfigurationValue(
+        "dungeon.mob-limits.per-instance",
+        listOf("The most dungeon mobs alive at once in one instance. Spawns past this wait until some die"),
+        { "Per instance mob limit is undefined or out of bounds: ${it.message}" },
+        60,
+        {
+            val i = it as Int
+            check(i >= 1) { "An instance has to be able to have at least one mob" }
+            i
+        }
+    )
+
+    val mobLimitGlobal = ConfigurationValue(
+        "dungeon.mob-limits.global",
+        listOf("The most dungeon mobs alive at once across every instance. Spawns past this wait until some die"),
+        { "Global mob limit is undefined or out of bounds: ${it.message}" },
+        300,
+        {
+            val i = it as Int
+            check(i >= 1) { "There has to be room for at least one mob" }
+            i
+        }
+    )
+
+    val mobDormancy = ConfigurationValue(
+        "dungeon.mob-dormancy.enabled",
+        listOf("Whether dungeon mobs in rooms with no players nearby stop ticking their AI until someone comes close"),
+        { "Mob dormancy is undefined" },
+        false,
+        { it as Boolean }
+    )
+
+    val mobDormancyDistance = ConfigurationValue(
+        "dungeon.mob-dormancy.distance",
+        listOf("How close, in blocks, a player has to be to a room to wake its mobs"),
+        { "Mob dormancy distance is undefined or out of bounds: ${it.message}" },
+        24,
+        {
+            val i = it as Int
+            check(i >= 0) { "Distance cannot be negative" }
+            i
+        }
+    )
+
+    val hideDormantMobs = ConfigurationValue(
+        "dungeon.mob-dormancy.hide",
+        listOf("Whether dormant mobs are also hidden from players, so they are not sent to anyone"),
+        { "Hide dormant mobs is undefined" },
+        false,
+        { it as Boolean }
+    )
+
+    val flowFieldNavigation = ConfigurationValue(
+        "dungeon.navigation.flow-fields",
+        listOf(
+            "Whether dungeon mobs in static dungeons chase players along navigation grids made from the schematic,",
+            "instead of each mob pathfinding on its own. Grids are cached in the 'navigation' folder"
+        ),
+        { "Flow field navigation is undefined" },
+        true,
+        { it as Boolean }
+    )
+
+    val emptyInstanceGracePeriod = ConfigurationValue(
+        "dungeon.empty-grace-seconds",
+        listOf("How long an instance stays around after its last player leaves, before it is removed or re-cached"),
+        { "Empty instance grace period is undefined or out of bounds: ${it.message}" },
+        10,
+        {
+            val i = it as Int
+            check(i >= 1) { "Grace period must be at least a second" }
+            i
+        }
+    )
+
     val resourceDataFiles = ConfigurationValue(
         "debug.use-exclusively-resource-files",
         listOf(
@@ -141,6 +259,17 @@ class TheConfig: DataFileLoader("config.yml"){
         renderRefreshRate.load(yaml)
         renderer.load(yaml)
         componentLogging.load(yaml)
+        adaptiveViewDistance.load(yaml)
+        perRoomViewDistance.load(yaml)
+        viewDistancePadding.load(yaml)
+        emptyInstanceGracePeriod.load(yaml)
+        mobSpawnBudget.load(yaml)
+        mobLimitPerInstance.load(yaml)
+        mobLimitGlobal.load(yaml)
+        mobDormancy.load(yaml)
+        mobDormancyDistance.load(yaml)
+        hideDormantMobs.load(yaml)
+        flowFieldNavigation.load(yaml)
         yaml.save(file)
         return DataOperationResult.SUCCESS
     }
@@ -9,6 +9,10 @@ import dev.munky.instantiated.common.util.log
 import dev.munky.instantiated.data.Storage
 import dev.munky.instantiated.dungeon.component.ComponentCodecs
 import dev.munky.instantiated.dungeon.component.DungeonComponent
+import dev.munky.instantiated.dungeon.component.StateSlot
+import dev.munky.instantiated.dungeon.component.trait.StatefulTrait
+import dev.munky.instantiated.dungeon.component.trait.TriggerRouter
+import dev.munky.instantiated.dungeon.component.trait.TriggerTrait
 import dev.munky.instantiated.dungeon.interfaces.RoomFormat
 import dev.munky.instantiated.exception.DungeonExceptions.Companion.DataSyntax
 import org.koin.core.component.KoinComponent
@@ -94,15 +98,67 @@ class ComponentLoader: DataFileLoader("components.json"), KoinComponent {
     }
 }
 
+/**
+ * Components by room, with indexes by uuid kept next to it.
+ *
+ * Every change builds a new [Snapshot] and publishes it whole, and every [Map] member reads from it,
+ * so the component thread and the server thread read components without locking and never see an index halfway through an update.
+ * Changes only happen when loading and editing, so rebuilding on each one is cheap enough.
+ */
 class ComponentStorage: Storage<RoomFormat, List<DungeonComponent>>(true){
-    /**
-     * Does a linear search to find a [DungeonComponent] with a matching uuid.
-     */
-    fun getByUUID(uuid: UUID): DungeonComponent? =
-        values.flatten().firstOrNull {
-            it.uuid == uuid
+    private class Snapshot(
+        val byRoom: Map<RoomFormat, List<DungeonComponent>>,
+        val byUuid: Map<UUID, DungeonComponent>,
+        val roomByUuid: Map<UUID, RoomFormat>
+    )
+
+    @Volatile
+    private var snapshot = Snapshot(emptyMap(), emptyMap(), emptyMap())
+
+    override fun changed() {
+        val byRoom = HashMap<RoomFormat, List<DungeonComponent>>(data.size)
+        val byUuid = HashMap<UUID, DungeonComponent>()
+        val roomByUuid = HashMap<UUID, RoomFormat>()
+        for ((room, components) in data) {
+            val copy = components.toList()
+            byRoom[room] = copy
+            for (component in copy) {
+                byUuid[component.uuid] = component
+                roomByUuid[component.uuid] = room
+            }
+        }
+        snapshot = Snapshot(byRoom, byUuid, roomByUuid)
+        TriggerRouter.rebuild(byRoom)
+        val live = ArrayList<StateSlot.Key>()
+        for (components in byRoom.values) {
+            for (component in components) {
+                for (trait in component.plan.functional) {
+                    if (trait is TriggerTrait) trait.resolveTargets(byUuid::get)
+                }
+                val seen = HashMap<Class<*>, Int>()
+                for (trait in component.`@traits`) {
+                    if (trait !is StatefulTrait) continue
+                    val occurrence = seen.merge(trait.javaClass, 1, Int::plus)!! - 1
+                    live += trait.slot.assign(component.uuid, trait.javaClass, occurrence)
+                }
+            }
         }
+        // lays the states out for exactly these, so keys of removed components are dropped
+        StateSlot.rebuild(live)
+    }
+
+    // every read goes through the published snapshot, never the map being written to
+    override fun get(key: RoomFormat): List<DungeonComponent>? = snapshot.byRoom[key]
+    override val entries: Set<Map.Entry<RoomFormat, List<DungeonComponent>>> get() = snapshot.byRoom.entries
+    override val keys: Set<RoomFormat> get() = snapshot.byRoom.keys
+    override val values: Collection<List<DungeonComponent>> get() = snapshot.byRoom.values
+    override val size: Int get() = snapshot.byRoom.size
+    override fun isEmpty(): Boolean = snapshot.byRoom.isEmpty()
+    override fun containsKey(key: RoomFormat): Boolean = snapshot.byRoom.containsKey(key)
+    override fun containsValue(value: List<DungeonComponent>): Boolean = snapshot.byRoom.containsValue(value)
+
+    fun getByUUID(uuid: UUID): DungeonComponent? = snapshot.byUuid[uuid]
 
     fun getRoomByComponent(component: DungeonComponent): RoomFormat =
-        entries.firstOrNull { it.value.contains(component) }?.key ?: throw IllegalStateException("How does a component not have an associated room")
+        snapshot.roomByUuid[component.uuid] ?: throw IllegalStateException("How does a component not have an associated room")
 }
\ No newline at end of file
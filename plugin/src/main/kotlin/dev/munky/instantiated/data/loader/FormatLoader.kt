@@ -15,6 +15,7 @@ import dev.munky.instantiated.data.ServerJsonCodecs
 import dev.munky.instantiated.data.Storage
 import dev.munky.instantiated.dungeon.interfaces.Format
 import dev.munky.instantiated.dungeon.interfaces.RoomFormat
+import dev.munky.instantiated.dungeon.lobby.LobbyFormat
 import dev.munky.instantiated.dungeon.sstatic.StaticFormat
 import dev.munky.instantiated.dungeon.sstatic.StaticRoomFormat
 import dev.munky.instantiated.edit.EditModeHandler
@@ -113,6 +114,7 @@ class FormatLoader : DataFileLoader("dungeons.json"), KoinComponent {
             try {
                 val format = when (dungeon){
                     is StaticFormat -> FormatCodecs.STATIC_FORMAT.encode(dungeon).asJsonObject
+                    is LobbyFormat -> FormatCodecs.LOBBY_FORMAT.encode(dungeon).asJsonObject
                     else -> throw DataSyntax.consume("unhandled dungeon format class '${this::class.simpleName}'")
                 }
                 dungeonArray.add(format)
@@ -141,6 +143,7 @@ class FormatLoader : DataFileLoader("dungeons.json"), KoinComponent {
             type = typeElement.asString
             return when (type){
                 "static" -> FormatCodecs.STATIC_FORMAT.decode(json)
+                "lobby" -> FormatCodecs.LOBBY_FORMAT.decode(json)
                 else -> throw DataSyntax.consume("unhandled dungeon type '$type'")
             }
         }catch (e:Throwable){
@@ -216,6 +219,31 @@ object FormatCodecs {
             format
         }
     )
+    val LOBBY_FORMAT = JsonCodec.of(
+        LobbyFormat::class,
+        {
+            val json = JsonObject()
+            json.addProperty("type", "lobby")
+            json.add("id", CommonJsonCodecs.STRING.encode(it.identifier.key))
+            json.addProperty("schematic", it.schematicFile.name)
+            json.add("spawn", CommonJsonCodecs.VECTOR3F.encode(it.spawnVector))
+            json.add("capacity", CommonJsonCodecs.INT.encode(it.capacity))
+            plugin.logger.debug("Saved lobby '${it.identifier}'")
+            json
+        },
+        {
+            check(it is JsonObject) {"Lobby format is not a Json Object"}
+            val identifier = CommonJsonCodecs.STRING.decode(it.get("id"))
+            val schematic = CommonJsonCodecs.STRING.decode(it.get("schematic"))
+            val schemFile = FormatLoader.REGISTERED_SCHEMATICS[schematic]
+                ?: throw DataSyntax.consume("schematic '$schematic' does not exist")
+            val spawnVector = CommonJsonCodecs.VECTOR3F.decode(it.get("spawn"))
+            val capacity = it.get("capacity")?.let { c -> CommonJsonCodecs.INT.decode(c) } ?: LobbyFormat.DEFAULT_CAPACITY
+            if (capacity < 1) throw DataSyntax.consume("lobby capacity must be at least 1, got $capacity")
+            plugin.logger.debug("Loaded lobby '$identifier'")
+            LobbyFormat(IdType.DUNGEON.with(identifier), spawnVector, schemFile, capacity)
+        }
+    )
     private val alphabeticIdComp: Comparator<IdKey> = Comparator { o1, o2 -> alphabeticStringComparator.compare(o1.key, o2.key)}
 }
 
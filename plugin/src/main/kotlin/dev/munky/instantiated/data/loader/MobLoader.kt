@@ -12,8 +12,10 @@ import dev.munky.instantiated.common.util.log
 import dev.munky.instantiated.data.Storage
 import dev.munky.instantiated.dungeon.mob.BossDungeonMob
 import dev.munky.instantiated.dungeon.mob.DungeonMob
+import dev.munky.instantiated.dungeon.mob.MobTemplates
 import dev.munky.instantiated.dungeon.mob.SimpleDungeonMob
 import dev.munky.instantiated.exception.DungeonExceptions.Companion.DataSyntax
+import dev.munky.instantiated.plugin
 import dev.munky.instantiated.util.ModifiableCodecHolder
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.get
@@ -24,6 +26,7 @@ class MobLoader : DataFileLoader("mobs.json"), KoinComponent {
         val rootArray = JsonParser.parseString(String(data, Charsets.UTF_8))
         if (rootArray !is JsonArray) throw DataSyntax.consume("root json is a '${rootArray.javaClass.simpleName}', not a JsonArray")
         val mobs = mutableMapOf<IdKey, DungeonMob>()
+        val templates = mutableMapOf<IdKey, String>()
         rootArray.forEach { entryElement ->
             var type = "unknown type"
             var id = "unknown id"
@@ -43,11 +46,16 @@ class MobLoader : DataFileLoader("mobs.json"), KoinComponent {
                 id = checkType<JsonPrimitive>(mobData.get("id"), "a mob's id").asString
                 val mob = codec.decode(mobData)
                 mobs += mob.identifier to mob
+                entryData.get("entity")?.let {
+                    templates[mob.identifier] = checkType<JsonPrimitive>(it, "a mob's entity template").asString
+                }
             }catch (t: Throwable){
                 t.log("Error loading a '$type' named '$id'")
             }
         }
         get<MobStorage>().load(mobs)
+        MobTemplates.load(templates)
+        plugin.logger.debug("Compiled ${MobTemplates.size} of ${templates.size} mob entity templates")
         return DataOperationResult.SUCCESS
     }
 
@@ -58,6 +66,7 @@ class MobLoader : DataFileLoader("mobs.json"), KoinComponent {
             val entryData = JsonObject()
             val codec = MobCodecs.get(mob::class)
             entryData.addProperty("type", codec.clazz.simpleName!!)
+            MobTemplates.sourceOf(mob.identifier)?.let { entryData.addProperty("entity", it) }
             val mobData = codec.encode(mob)
             entryData.add("data", mobData)
             rootArray.add(entryData)
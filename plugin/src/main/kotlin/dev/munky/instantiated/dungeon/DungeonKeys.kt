@@ -0,0 +1,126 @@
+package dev.munky.instantiated.dungeon
+
+import dev.munky.instantiated.data.config.TheConfig
+import dev.munky.instantiated.data.loader.caption
+import dev.munky.instantiated.dungeon.interfaces.Instance
+import dev.munky.instantiated.dungeon.interfaces.RoomInstance
+import dev.munky.instantiated.plugin
+import dev.munky.instantiated.scheduling.Schedulers
+import dev.munky.instantiated.util.asComponent
+import dev.munky.instantiated.util.setGlowColorFor
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap
+import net.kyori.adventure.text.Component
+import org.bukkit.Bukkit
+import org.bukkit.Location
+import org.bukkit.entity.Entity
+import org.bukkit.entity.Item
+import org.bukkit.event.player.PlayerAttemptPickupItemEvent
+import org.bukkit.inventory.ItemStack
+import org.bukkit.persistence.PersistentDataType
+
+/**
+ * Every key lying on the ground, by the entity id of its item.
+ *
+ * One listener handles every pickup with a map lookup, and one task picks up keys nobody got to in time.
+ * Every key waits the same [AUTO_PICKUP_TICKS], so keys drop in the order they expire and the timer is just a queue.
+ * Server thread only.
+ */
+object DungeonKeys {
+    class DroppedKey internal constructor(val item: Item, val room: RoomInstance, val expiresAt: Int)
+
+    private const val AUTO_PICKUP_TICKS = 15 * 20
+    private val keys = Int2ObjectOpenHashMap<DroppedKey>()
+    private val expiring = ArrayDeque<DroppedKey>()
+    private val keyItemName = Component.text("null")
+
+    /**
+     * Drops a key for [room] at [location], in world space.
+     */
+    fun drop(room: RoomInstance, location: Location): Item {
+        check(Bukkit.isPrimaryThread()) { "Keys can only be dropped on the server thread" }
+        val keyItem = ItemStack(room.format.keyMaterial)
+        val meta = keyItem.itemMeta
+        meta.displayName(keyItemName)
+        keyItem.setItemMeta(meta)
+        val keyDropTitle = room.generateKeyTitle("<gradient:red:blue:red>Key dropped!".asComponent)
+        for (player in room.parent.onlinePlayers) { player.showTitle(keyDropTitle) }
+        val config = plugin.get<TheConfig>()
+        val item = location.world.spawn(location, Item::class.java) { itemEntity ->
+            itemEntity.isCustomNameVisible = true
+            itemEntity.customName(caption("instance.key.item_name"))
+            itemEntity.setCanMobPickup(false)
+            itemEntity.isUnlimitedLifetime = true
+            itemEntity.persistentDataContainer.set(DungeonManager.INIT_TIME, PersistentDataType.LONG, plugin.initTime)
+            itemEntity.itemStack = keyItem
+            if (config.keysGlow.value) setGlowColorFor(itemEntity, config.keysGlowColor.value)
+        }
+        val key = DroppedKey(item, room, Bukkit.getCurrentTick() + AUTO_PICKUP_TICKS)
+        keys.put(item.entityId, key)
+        expiring.addLast(key)
+        plugin.logger.debug("Spawned key at $location")
+        return item
+    }
+
+    /**
+     * Handles [event] if the item is a key, giving it to the instance instead of the player.
+     */
+    fun pickup(event: PlayerAttemptPickupItemEvent) {
+        val key = keys.remove(event.item.entityId) ?: return
+        event.isCancelled = true
+        event.flyAtPlayer = true
+        event.item.remove()
+        collect(key)
+        plugin.logger.debug("Player '${event.player.name}' picked up a key! Current keys = ${key.room.parent.doorKeys}")
+    }
+
+    /**
+     * Picks up every key that has been lying around for too long.
+     */
+    fun expire() {
+        val now = Bukkit.getCurrentTick()
+        while (true) {
+            val key = expiring.firstOrNull() ?: return
+            if (key.expiresAt > now) return
+            expiring.removeFirst()
+            // already picked up or forgotten
+            if (keys.get(key.item.entityId) !== key) continue
+            keys.remove(key.item.entityId)
+            if (!key.item.isInWorld || key.item.isDead) continue
+            key.item.remove()
+            collect(key)
+            plugin.logger.debug("Key automatically picked up! Current keys = ${key.room.parent.doorKeys}")
+        }
+    }
+
+    /**
+     * Stops tracking [entity] if it is a key, when it leaves the world some other way.
+     */
+    fun forget(entity: Entity) {
+        keys.remove(entity.entityId)
+    }
+
+    /**
+     * Removes every key of [instance] from the world, for when it goes away.
+     */
+    fun forget(instance: Instance) {
+        if (!Bukkit.isPrimaryThread()) {
+            Schedulers.SYNC.submit { forget(instance) }
+            return
+        }
+        val iterator = keys.values.iterator()
+        while (iterator.hasNext()) {
+            val key = iterator.next()
+            if (key.room.parent !== instance) continue
+            iterator.remove()
+            key.item.remove()
+        }
+        expiring.removeIf { it.room.parent === instance }
+    }
+
+    private fun collect(key: DroppedKey) {
+        val instance = key.room.parent
+        instance.doorKeys++
+        val keyPickupTitle = key.room.generateKeyTitle(caption("instance.key.title.picked_up"))
+        for (player in instance.onlinePlayers) player.showTitle(keyPickupTitle)
+    }
+}
@@ -9,12 +9,17 @@ import dev.munky.instantiated.data.loader.FormatStorage
 import dev.munky.instantiated.dungeon.interfaces.Format
 import dev.munky.instantiated.dungeon.interfaces.Instance
 import dev.munky.instantiated.dungeon.interfaces.RoomInstance
+import dev.munky.instantiated.dungeon.lifecycle.LifecycleState
 import dev.munky.instantiated.dungeon.mob.DungeonMob
+import dev.munky.instantiated.dungeon.mob.MobSpawnQueue
 import dev.munky.instantiated.exception.DungeonExceptions
 import dev.munky.instantiated.plugin
 import dev.munky.instantiated.util.FileUtil
 import dev.munky.instantiated.world.VoidGenerator
 import io.papermc.paper.util.Tick
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap
 import net.kyori.adventure.util.TriState
 import org.bukkit.*
 import org.bukkit.entity.Player
@@ -22,6 +27,7 @@ import org.koin.core.component.KoinComponent
 import org.koin.core.component.get
 import java.time.Duration
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.math.pow
 
 /**
@@ -33,13 +39,36 @@ class DungeonManagerImpl : DungeonManager {
         throw t
     } }
 
-    override val instances get() = get<FormatStorage>().values.flatMap { it.instances }
+    // a view over the instances of every format, so the repeating tasks that walk it do not build a list each time
+    override val instances: Collection<Instance> = object : AbstractCollection<Instance>() {
+        override val size: Int get() = get<FormatStorage>().values.sumOf { it.instances.size }
+        override fun iterator(): Iterator<Instance> = sequence {
+            for (format in get<FormatStorage>().values) yieldAll(format.instances)
+        }.iterator()
+    }
+
+    // player uuid mapped to the instance they are in, kept up to date by the instances themselves
+    private val playerIndex: MutableMap<UUID, Instance> = ConcurrentHashMap()
+
+    // grid slot mapped to the instance pasted there, see slotKey
+    private val slots: Long2ObjectMap<Instance> = Long2ObjectMaps.synchronize(Long2ObjectOpenHashMap())
 
     override fun initialize() {}
 
     override fun getCurrentDungeon(
         player: UUID
-    ): Instance? = instances.firstOrNull { it.players.contains(player) }
+    ): Instance? = playerIndex[player]
+
+    override fun trackPlayer(player: UUID, instance: Instance) {
+        val previous = playerIndex.put(player, instance)
+        if (previous != null && previous !== instance) plugin.logger.debug("Player '$player' was still indexed in '${previous.identifier}'")
+        RoomTracker.track(player, instance)
+    }
+
+    override fun untrackPlayer(player: UUID, instance: Instance) {
+        playerIndex.remove(player, instance)
+        RoomTracker.untrack(player, instance)
+    }
 
     override fun cleanup() {
         for (instance in instances) {
@@ -59,6 +88,9 @@ class DungeonManagerImpl : DungeonManager {
                 t.log("Exception while cleaning up instance")
             }
         }
+        playerIndex.clear()
+        slots.clear()
+        MobSpawnQueue.clear()
     }
 
     override fun shutdown() = runCatching {
@@ -75,7 +107,28 @@ class DungeonManagerImpl : DungeonManager {
         location: Location = nextLocation(),
         ops: Format.InstanceOption
     ): Result<Instance> = runCatching {
-        format.instance(location,ops)
+        format.instance(location,ops).also { slots.put(slotKey(it.locationInWorld.blockX, it.locationInWorld.blockZ), it) }
+    }
+
+    override fun getInstanceAt(location: Location): Instance? {
+        if (location.world != dungeonWorld) return null
+        val key = slotKey(location.blockX, location.blockZ)
+        val instance = slots.get(key) ?: return null
+        if (instance.lifecycle.state == LifecycleState.FREE) {
+            slots.remove(key, instance)
+            return null
+        }
+        return instance
+    }
+
+    /**
+     * Instances are pasted on a grid, so the slot of a position is the grid point nearest to it.
+     */
+    private fun slotKey(x: Int, z: Int): Long {
+        val gridSize = get<TheConfig>().dungeonGridSize.value
+        val slotX = Math.floorDiv(x + gridSize / 2, gridSize)
+        val slotZ = Math.floorDiv(z + gridSize / 2, gridSize)
+        return (slotX.toLong() shl 32) or (slotZ.toLong() and 0xFFFFFFFFL)
     }
     
     override fun startInstance(
@@ -164,6 +217,18 @@ interface DungeonManager : KoinComponent {
         players: Collection<UUID>
     ): Result<Instance>
     fun getCurrentDungeon(player: UUID): Instance?
+    /**
+     * The instance pasted in the grid slot [location] is in, whether or not a player is in it.
+     */
+    fun getInstanceAt(location: Location): Instance?
+    /**
+     * Records that [player] is now in [instance], called by instances as they let a player in.
+     */
+    fun trackPlayer(player: UUID, instance: Instance)
+    /**
+     * Forgets [player], but only if they are still recorded as being in [instance].
+     */
+    fun untrackPlayer(player: UUID, instance: Instance)
     fun cleanup()
     fun shutdown()
 
@@ -178,7 +243,6 @@ interface DungeonManager : KoinComponent {
         val KEY_ENTITY_ITEM = NamespacedKey(plugin, "key-entity-item")
         val DUNGEON_MOB_ENTITY = IntraEntry<Pair<RoomInstance, DungeonMob>>("dungeon.mob")
         val INIT_TIME = NamespacedKey(plugin, "init-time")
-        val NO_DESPAWN_ENTITY = IntraEntry<Unit>("no-despawn-entity")
         val EDIT_TOOL = NamespacedKey(plugin, "edit-tool")
         const val DEFAULT_DIFFICULTY = 1.0
 
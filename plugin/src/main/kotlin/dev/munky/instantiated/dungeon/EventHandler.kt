@@ -1,29 +1,49 @@
 package dev.munky.instantiated.dungeon
 
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent
+import dev.munky.instantiated.common.structs.Box
 import dev.munky.instantiated.common.util.log
 import dev.munky.instantiated.common.util.times
+import dev.munky.instantiated.data.IntraDataStores.EntityIntraData
 import dev.munky.instantiated.data.IntraDataStores.EntityIntraData.getIntraData
 import dev.munky.instantiated.data.IntraDataStores.EntityIntraData.hasIntraData
 import dev.munky.instantiated.data.config.TheConfig
 import dev.munky.instantiated.data.loader.FormatStorage
+import dev.munky.instantiated.dungeon.checkpoint.CheckpointManager
 import dev.munky.instantiated.dungeon.interfaces.Format
 import dev.munky.instantiated.dungeon.interfaces.Instance
+import dev.munky.instantiated.dungeon.mob.DungeonMobRegistry
+import dev.munky.instantiated.dungeon.mob.MobDormancy
+import dev.munky.instantiated.dungeon.mob.MobNameplates
 import dev.munky.instantiated.edit.EditModeHandler
+import dev.munky.instantiated.edit.isInEditMode
 import dev.munky.instantiated.event.DungeonTotalCacheEvent
 import dev.munky.instantiated.event.ListenerFactory
+import dev.munky.instantiated.event.room.DungeonRoomPlayerEnterEvent
 import dev.munky.instantiated.plugin
 import dev.munky.instantiated.scheduling.Schedulers
+import io.papermc.paper.event.player.PlayerTrackEntityEvent
+import io.papermc.paper.event.player.PlayerUntrackEntityEvent
 import org.bukkit.Bukkit
+import org.bukkit.Material
 import org.bukkit.entity.LivingEntity
+import org.bukkit.entity.Player
 import org.bukkit.event.Event
 import org.bukkit.event.HandlerList
 import org.bukkit.event.Listener
+import org.bukkit.event.block.BlockBreakEvent
 import org.bukkit.event.block.BlockPlaceEvent
 import org.bukkit.event.entity.EntityDamageEvent
+import org.bukkit.event.entity.EntityDismountEvent
+import org.bukkit.event.entity.EntityMountEvent
+import org.bukkit.event.entity.EntityRegainHealthEvent
+import org.bukkit.event.player.PlayerAttemptPickupItemEvent
 import org.bukkit.event.player.PlayerJoinEvent
 import org.bukkit.event.player.PlayerQuitEvent
 import org.bukkit.event.player.PlayerTeleportEvent
+import org.bukkit.event.world.EntitiesLoadEvent
 import org.bukkit.event.world.EntitiesUnloadEvent
+import org.joml.Vector3f
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.get
 import kotlin.reflect.KClass
@@ -61,6 +81,10 @@ class EventManager: KoinComponent {
         }
         data object QuitHandler : EventHandler<PlayerQuitEvent>(PlayerQuitEvent::class) {
             override fun handle(event: PlayerQuitEvent) {
+                // intra data does not outlive the entity, so give the editor their inventory back while it still exists
+                if (event.player.isInEditMode) plugin.get<EditModeHandler>().stopEditModeFor(event.player)
+                EntityIntraData.forget(event.player)
+                MobNameplates.forget(event.player.uniqueId)
                 val uuid = event.player.uniqueId
                 val dungeon = event.player.currentDungeon?.identifier ?: return
                 val name = event.player.name
@@ -77,12 +101,15 @@ class EventManager: KoinComponent {
         }
         data object PlayerJoin : EventHandler<PlayerJoinEvent>(PlayerJoinEvent::class) {
             override fun handle(event: PlayerJoinEvent) {
+                if (plugin.get<CheckpointManager>().claimReservation(event.player)) return
                 val instance = event.player.currentDungeon
                 if (instance == null && (event.player.world.name == MANAGER.dungeonWorld.name)) {
                     // TODO maybe make this location editable
                     event.player.teleport(Bukkit.getWorlds().first().spawnLocation)
                     plugin.logger.debug("Moved '${event.player.name}' out of instancing world (not in instance)")
-                }else {
+                }else if (instance != null) {
+                    // per player view distance does not survive reconnecting
+                    InstanceViewDistance.apply(event.player, instance.bounds)
                     plugin.logger.debug("player is in instance $instance")
                 }
             }
@@ -91,18 +118,74 @@ class EventManager: KoinComponent {
             @Suppress("UnstableApiUsage")
             override fun handle(event: EntityDamageEvent) {
                 val victim = event.entity
-                val pdc = victim.persistentDataContainer
-                if (!pdc.has(DungeonManager.INIT_TIME)) return
+                // every damage on the server ends up here, so throw out everything else as cheaply as possible
+                if (victim.world !== MANAGER.dungeonWorld) return
+                if (!DungeonMobRegistry.isDungeonMob(victim.entityId)) return
                 if (victim !is LivingEntity) return
+                MobNameplates.markDirty(victim)
                 if (victim.health - event.finalDamage > 0) return // certain death
 
                 val data = victim.getIntraData(DungeonManager.DUNGEON_MOB_ENTITY) ?: return
 
-                val killer = (event.damageSource.causingEntity ?: return) as LivingEntity
+                val killer = event.damageSource.causingEntity as? LivingEntity ?: return
 
                 val ret = data.first.registerDungeonMobDeath(data.first, data.second, victim, killer)
                 if (!ret) event.isCancelled = true
-                else victim.getPassengers().forEach { it.remove() } // for name tags and such
+                else {
+                    MobNameplates.remove(victim)
+                    victim.getPassengers().forEach { it.remove() } // anything other plugins put on it
+                }
+            }
+        }
+        data object EntityLoadHandler : EventHandler<EntitiesLoadEvent>(EntitiesLoadEvent::class) {
+            override fun handle(event: EntitiesLoadEvent) {
+                if (event.world != MANAGER.dungeonWorld) return
+                for (entity in event.entities) StaleEntities.purge(entity)
+            }
+        }
+        data object IntraDataCleanup : EventHandler<EntityRemoveFromWorldEvent>(EntityRemoveFromWorldEvent::class) {
+            override fun handle(event: EntityRemoveFromWorldEvent) {
+                // players also leave a world when changing worlds, they are forgotten when they quit instead
+                if (event.entity is Player) return
+                // a dungeon mob that leaves without dying no longer counts as alive in its room
+                event.entity.getIntraData(DungeonManager.DUNGEON_MOB_ENTITY)?.first?.parent?.activeMobs?.unregister(event.entity.entityId)
+                MobNameplates.remove(event.entity)
+                DungeonKeys.forget(event.entity)
+                EntityIntraData.forget(event.entity)
+            }
+        }
+        data object KeyPickup : EventHandler<PlayerAttemptPickupItemEvent>(PlayerAttemptPickupItemEvent::class) {
+            override fun handle(event: PlayerAttemptPickupItemEvent) {
+                if (event.item.world !== MANAGER.dungeonWorld) return
+                DungeonKeys.pickup(event)
+            }
+        }
+        data object MobHeal : EventHandler<EntityRegainHealthEvent>(EntityRegainHealthEvent::class) {
+            override fun handle(event: EntityRegainHealthEvent) {
+                if (event.entity.world !== MANAGER.dungeonWorld) return
+                MobNameplates.markDirty(event.entity)
+            }
+        }
+        data object NameplateTrack : EventHandler<PlayerTrackEntityEvent>(PlayerTrackEntityEvent::class) {
+            override fun handle(event: PlayerTrackEntityEvent) {
+                MobNameplates.track(event.player, event.entity)
+            }
+        }
+        data object NameplateUntrack : EventHandler<PlayerUntrackEntityEvent>(PlayerUntrackEntityEvent::class) {
+            override fun handle(event: PlayerUntrackEntityEvent) {
+                MobNameplates.untrack(event.player, event.entity)
+            }
+        }
+        data object NameplateMount : EventHandler<EntityMountEvent>(EntityMountEvent::class) {
+            override fun handle(event: EntityMountEvent) {
+                if (event.mount.world !== MANAGER.dungeonWorld) return
+                MobNameplates.remount(event.mount)
+            }
+        }
+        data object NameplateDismount : EventHandler<EntityDismountEvent>(EntityDismountEvent::class) {
+            override fun handle(event: EntityDismountEvent) {
+                if (event.dismounted.world !== MANAGER.dungeonWorld) return
+                MobNameplates.remount(event.dismounted)
             }
         }
         data object EntityUnloadHandler : EventHandler<EntitiesUnloadEvent>(EntitiesUnloadEvent::class) {
@@ -120,7 +203,7 @@ class EventManager: KoinComponent {
                     return
                 }
                 FORMATS.values.forEach { dungeon ->
-                    dungeon.instances.forEach { it.remove(Instance.RemovalReason.FORMAT_CHANGE, false) }
+                    dungeon.instances.toList().forEach { it.remove(Instance.RemovalReason.FORMAT_CHANGE, false) }
                     val currentCachedCount = dungeon.cached.size
                     (cacheSize - currentCachedCount).times {
                         MANAGER.startInstance(
@@ -136,8 +219,44 @@ class EventManager: KoinComponent {
         data object BlockPlaceHandler : EventHandler<BlockPlaceEvent>(BlockPlaceEvent::class) {
             override fun handle(event: BlockPlaceEvent) {
                 val player = event.player
-                MANAGER.getCurrentDungeon(player.uniqueId) ?: return
+                val instance = MANAGER.getCurrentDungeon(player.uniqueId) ?: return
                 if (!player.hasIntraData(EditModeHandler.StateKeys.EDIT_MODE)) event.isCancelled = true;
+                if (event.isCancelled) return
+                val block = event.blockPlaced
+                val owner = MANAGER.getInstanceAt(block.location) ?: instance
+                owner.blockJournal.record(block.x, block.y, block.z, block.blockData)
+            }
+        }
+        data object BlockBreakHandler : EventHandler<BlockBreakEvent>(BlockBreakEvent::class) {
+            override fun handle(event: BlockBreakEvent) {
+                if (event.isCancelled) return
+                val block = event.block
+                val instance = MANAGER.getInstanceAt(block.location) ?: return
+                instance.blockJournal.record(block.x, block.y, block.z, Material.AIR.createBlockData())
+            }
+        }
+        data object RoomEnterViewDistance : EventHandler<DungeonRoomPlayerEnterEvent>(DungeonRoomPlayerEnterEvent::class) {
+            override fun handle(event: DungeonRoomPlayerEnterEvent) {
+                if (!plugin.get<TheConfig>().perRoomViewDistance.value) return
+                Schedulers.SYNC.submit {
+                    val room = event.room
+                    val min = Vector3f(room.box.minimum)
+                    val max = Vector3f(room.box.maximum)
+                    // mobs in chunks the player stops loading get discarded, so rooms with mobs stay in view
+                    for (other in room.parent.rooms.values) {
+                        if (other === room || room.parent.activeMobs.aliveIn(other.identifier) == 0) continue
+                        min.min(other.box.minimum)
+                        max.max(other.box.maximum)
+                    }
+                    InstanceViewDistance.apply(event.player, Box(min, max))
+                }
+            }
+        }
+        data object RoomEnterWakeMobs : EventHandler<DungeonRoomPlayerEnterEvent>(DungeonRoomPlayerEnterEvent::class) {
+            override fun handle(event: DungeonRoomPlayerEnterEvent) {
+                // the dormancy pass would get to it, but not before the player sees the mobs standing still
+                if (!MobDormancy.isDormant(event.room)) return
+                Schedulers.SYNC.submit { MobDormancy.wake(event.room) }
             }
         }
         data object PlayerTeleport : EventHandler<PlayerTeleportEvent>(PlayerTeleportEvent::class){
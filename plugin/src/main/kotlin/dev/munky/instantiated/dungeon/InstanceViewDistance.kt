@@ -0,0 +1,61 @@
+package dev.munky.instantiated.dungeon
+
+import dev.munky.instantiated.common.structs.Box
+import dev.munky.instantiated.data.config.TheConfig
+import dev.munky.instantiated.plugin
+import dev.munky.instantiated.scheduling.Schedulers
+import org.bukkit.Bukkit
+import org.bukkit.entity.Player
+import org.koin.core.component.get
+import java.util.*
+import kotlin.math.ceil
+import kotlin.math.max
+
+/**
+ * Players inside an instance can only ever see the instance, so there is no reason to send them
+ * the world's full view distance worth of (empty) chunks. This shrinks a player's view and send distance
+ * to the bounds they are in, and gives them their own back when they leave.
+ */
+object InstanceViewDistance {
+    /**
+     * The minimum the server accepts.
+     */
+    private const val MINIMUM = 2
+    // player uuid mapped to view distance and send view distance before entering an instance
+    private val saved: MutableMap<UUID, Pair<Int, Int>> = HashMap()
+
+    fun apply(player: Player, bounds: Box) {
+        if (!plugin.get<TheConfig>().adaptiveViewDistance.value) return
+        onServerThread {
+            saved.putIfAbsent(player.uniqueId, player.viewDistance to player.sendViewDistance)
+            val distance = distanceFor(bounds, player.world.viewDistance)
+            if (player.viewDistance != distance) player.viewDistance = distance
+            if (player.sendViewDistance != distance) player.sendViewDistance = distance
+            plugin.logger.debug("Set view distance of '${player.name}' to $distance")
+        }
+    }
+
+    /**
+     * Restores what the player had before [apply], if they are still online.
+     */
+    fun restore(uuid: UUID) = onServerThread {
+        val (view, send) = saved.remove(uuid) ?: return@onServerThread
+        val player = Bukkit.getPlayer(uuid) ?: return@onServerThread
+        player.viewDistance = view
+        player.sendViewDistance = send
+    }
+
+    /**
+     * The chunk radius needed to see all of [bounds] from anywhere inside of it.
+     */
+    fun distanceFor(bounds: Box, worldDistance: Int): Int {
+        val extent = max(bounds.maximum.x - bounds.minimum.x, bounds.maximum.z - bounds.minimum.z)
+        val chunks = ceil(extent / 16f).toInt() + plugin.get<TheConfig>().viewDistancePadding.value
+        return chunks.coerceIn(MINIMUM, max(MINIMUM, worldDistance))
+    }
+
+    private inline fun onServerThread(crossinline f: () -> Unit) {
+        if (Bukkit.isPrimaryThread()) f()
+        else Schedulers.SYNC.submit { f() }
+    }
+}
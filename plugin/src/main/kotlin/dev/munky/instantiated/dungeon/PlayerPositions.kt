@@ -0,0 +1,115 @@
+package dev.munky.instantiated.dungeon
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap
+import org.bukkit.Bukkit
+import org.bukkit.Location
+import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Positions of players taken once a tick on the server thread, for reading on other threads.
+ *
+ * Every capture fills a buffer that nobody is reading and then publishes it, so a reader always sees one whole tick,
+ * never a mix of two. Buffers are reused once their readers [release] them, so capturing does not allocate unless more players need room.
+ */
+object PlayerPositions {
+    @Volatile
+    private var current = Snapshot(0)
+    private val buffers = ArrayList<Snapshot>(3).apply { add(current) }
+    // reused for every player, only touched on the server thread
+    private val scratch = Location(null, 0.0, 0.0, 0.0)
+
+    /**
+     * Captures the positions of [players] that are online. Server thread only.
+     */
+    fun capture(players: Collection<UUID>) {
+        check(Bukkit.isPrimaryThread()) { "Player positions can only be captured on the server thread" }
+        val buffer = freeBuffer()
+        buffer.clear(players.size)
+        for (uuid in players) {
+            val player = Bukkit.getPlayer(uuid) ?: continue
+            player.getLocation(scratch)
+            buffer.add(uuid, scratch.x, scratch.y, scratch.z)
+        }
+        current = buffer
+    }
+
+    /**
+     * The latest snapshot, which stays as it is until it is given back with [release].
+     */
+    fun acquire(): Snapshot {
+        while (true) {
+            val snapshot = current
+            snapshot.readers.incrementAndGet()
+            // if it is still current, the writer cannot pick it anymore
+            if (snapshot === current) return snapshot
+            snapshot.readers.decrementAndGet()
+        }
+    }
+
+    fun release(snapshot: Snapshot) {
+        snapshot.readers.decrementAndGet()
+    }
+
+    inline fun <R> read(f: (Snapshot) -> R): R {
+        val snapshot = acquire()
+        try {
+            return f(snapshot)
+        } finally {
+            release(snapshot)
+        }
+    }
+
+    private fun freeBuffer(): Snapshot {
+        for (buffer in buffers) {
+            if (buffer !== current && buffer.readers.get() == 0) return buffer
+        }
+        // every buffer is being read, which only happens when a reader is slower than a tick
+        return Snapshot(current.capacity).also { buffers += it }
+    }
+
+    /**
+     * Struct of arrays, the player at slot i is at (xs[i], ys[i], zs[i]).
+     */
+    class Snapshot internal constructor(capacity: Int) {
+        internal val readers = AtomicInteger()
+        var uuids = arrayOfNulls<UUID>(capacity)
+            private set
+        var xs = DoubleArray(capacity)
+            private set
+        var ys = DoubleArray(capacity)
+            private set
+        var zs = DoubleArray(capacity)
+            private set
+        var size = 0
+            private set
+        private val index = Object2IntOpenHashMap<UUID>(capacity).apply { defaultReturnValue(-1) }
+
+        val capacity: Int get() = xs.size
+
+        fun indexOf(uuid: UUID): Int = index.getInt(uuid)
+
+        internal fun clear(needed: Int) {
+            for (i in 0 until size) uuids[i] = null
+            size = 0
+            index.clear()
+            if (needed > capacity) {
+                val grown = maxOf(needed, capacity * 2)
+                uuids = arrayOfNulls(grown)
+                xs = DoubleArray(grown)
+                ys = DoubleArray(grown)
+                zs = DoubleArray(grown)
+            }
+        }
+
+        internal fun add(uuid: UUID, x: Double, y: Double, z: Double) {
+            if (size == capacity) return
+            uuids[size] = uuid
+            xs[size] = x
+            ys[size] = y
+            zs[size] = z
+            index.put(uuid, size)
+            size++
+        }
+    }
+}
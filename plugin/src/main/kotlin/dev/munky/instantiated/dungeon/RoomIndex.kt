@@ -0,0 +1,75 @@
+package dev.munky.instantiated.dungeon
+
+import dev.munky.instantiated.dungeon.interfaces.RoomInstance
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap
+import org.joml.Vector3f
+import kotlin.math.floor
+
+/**
+ * The rooms of one instance by the chunk columns their boxes cover, so finding the room at a position
+ * only has to check the few rooms that share its column instead of every room in the instance.
+ *
+ * Rooms hardly ever move, so the index is built on first use and kept until [invalidate] is called,
+ * which has to happen whenever a room is added, removed or has its box changed.
+ */
+class RoomIndex(private val rooms: () -> Collection<RoomInstance>) {
+    @Volatile
+    private var columns: Long2ObjectMap<Array<RoomInstance>>? = null
+
+    fun invalidate() {
+        columns = null
+    }
+
+    fun roomAt(x: Double, y: Double, z: Double): RoomInstance? {
+        val candidates = columns()[key(floor(x).toInt() shr 4, floor(z).toInt() shr 4)] ?: return null
+        val vector = Vector3f(x.toFloat(), y.toFloat(), z.toFloat())
+        for (room in candidates) {
+            if (room.box.contains(vector)) return room
+        }
+        return null
+    }
+
+    /**
+     * The room whose center is nearest to the position, as long as it is within [maxDistance].
+     */
+    fun closestRoom(x: Double, y: Double, z: Double, maxDistance: Float): RoomInstance? {
+        val vector = Vector3f(x.toFloat(), y.toFloat(), z.toFloat())
+        var closest: RoomInstance? = null
+        var closestDistance = maxDistance * maxDistance
+        for (room in rooms()) {
+            val distance = room.box.center.distanceSquared(vector)
+            if (distance < closestDistance) {
+                closest = room
+                closestDistance = distance
+            }
+        }
+        return closest
+    }
+
+    private fun columns(): Long2ObjectMap<Array<RoomInstance>> = columns ?: synchronized(this) {
+        columns ?: build().also { columns = it }
+    }
+
+    private fun build(): Long2ObjectMap<Array<RoomInstance>> {
+        val lists = Long2ObjectOpenHashMap<MutableList<RoomInstance>>()
+        for (room in rooms().toList()) {
+            val min = room.box.minimum
+            val max = room.box.maximum
+            for (chunkX in (floor(min.x).toInt() shr 4)..(floor(max.x).toInt() shr 4)) {
+                for (chunkZ in (floor(min.z).toInt() shr 4)..(floor(max.z).toInt() shr 4)) {
+                    val key = key(chunkX, chunkZ)
+                    val list = lists.get(key) ?: ArrayList<RoomInstance>(2).also { lists.put(key, it) }
+                    list.add(room)
+                }
+            }
+        }
+        val built = Long2ObjectOpenHashMap<Array<RoomInstance>>(lists.size)
+        for (entry in lists.long2ObjectEntrySet()) built.put(entry.longKey, entry.value.toTypedArray())
+        return built
+    }
+
+    companion object {
+        fun key(chunkX: Int, chunkZ: Int): Long = (chunkX.toLong() shl 32) or (chunkZ.toLong() and 0xFFFFFFFFL)
+    }
+}
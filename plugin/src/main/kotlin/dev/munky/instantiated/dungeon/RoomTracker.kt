@@ -0,0 +1,93 @@
+package dev.munky.instantiated.dungeon
+
+import dev.munky.instantiated.dungeon.interfaces.Instance
+import dev.munky.instantiated.dungeon.interfaces.RoomInstance
+import dev.munky.instantiated.event.room.DungeonRoomPlayerEnterEvent
+import dev.munky.instantiated.event.room.DungeonRoomPlayerLeaveEvent
+import org.bukkit.Bukkit
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.floor
+
+/**
+ * Which room each player in an instance is in, and who is in each room.
+ *
+ * Only players inside an instance are tracked, and a tracked player's room is only looked up again
+ * once they have crossed into another block, so standing still or being outside every instance costs nothing.
+ */
+object RoomTracker {
+    private const val NO_BLOCK = Long.MIN_VALUE
+    private val tracked: MutableMap<UUID, Tracked> = ConcurrentHashMap()
+    private val occupants: MutableMap<RoomInstance, MutableSet<UUID>> = ConcurrentHashMap()
+
+    val trackedPlayers: Set<UUID> get() = tracked.keys
+
+    fun track(player: UUID, instance: Instance) {
+        tracked.put(player, Tracked(instance))?.let { retire(player, it) }
+    }
+
+    /**
+     * Stops tracking [player] if they are still tracked in [instance]. No leave event is called, they left the whole instance.
+     */
+    fun untrack(player: UUID, instance: Instance) {
+        val current = tracked[player] ?: return
+        if (current.instance !== instance || !tracked.remove(player, current)) return
+        retire(player, current)
+    }
+
+    fun roomOf(player: UUID): RoomInstance? = tracked[player]?.room
+
+    fun occupants(room: RoomInstance): Set<UUID> = occupants[room] ?: emptySet()
+
+    fun occupantCount(room: RoomInstance): Int = occupants[room]?.size ?: 0
+
+    fun isOccupied(room: RoomInstance): Boolean = occupantCount(room) > 0
+
+    /**
+     * Called with the latest position of a tracked player. Does nothing unless the player is in another block than last time,
+     * otherwise moves them between rooms and calls the enter and leave events.
+     */
+    fun update(player: UUID, x: Double, y: Double, z: Double) {
+        val current = tracked[player] ?: return
+        val block = packBlock(floor(x).toInt(), floor(y).toInt(), floor(z).toInt())
+        if (current.block == block) return
+        current.block = block
+        val room = current.instance.roomIndex.roomAt(x, y, z)
+        val pastRoom: RoomInstance?
+        // untracking on the server thread in the meantime would leave the player in the room forever
+        synchronized(current) {
+            if (current.retired) return
+            pastRoom = current.room
+            if (room === pastRoom) return
+            current.room = room
+            pastRoom?.let { leave(player, it) }
+            room?.let { occupants.computeIfAbsent(it) { ConcurrentHashMap.newKeySet() }.add(player) }
+        }
+        val online = Bukkit.getPlayer(player) ?: return
+        if (room != null) DungeonRoomPlayerEnterEvent(room, online).callEvent()
+        else if (pastRoom != null) DungeonRoomPlayerLeaveEvent(pastRoom, online).callEvent()
+    }
+
+    private fun retire(player: UUID, tracked: Tracked) = synchronized(tracked) {
+        tracked.retired = true
+        tracked.room?.let { leave(player, it) }
+        tracked.room = null
+    }
+
+    private fun leave(player: UUID, room: RoomInstance) {
+        occupants.computeIfPresent(room) { _, set ->
+            set.remove(player)
+            if (set.isEmpty()) null else set
+        }
+    }
+
+    private fun packBlock(x: Int, y: Int, z: Int): Long =
+        ((x.toLong() and 0x3FFFFFF) shl 38) or ((z.toLong() and 0x3FFFFFF) shl 12) or (y.toLong() and 0xFFF)
+
+    private class Tracked(val instance: Instance) {
+        @Volatile var block: Long = NO_BLOCK
+        @Volatile var room: RoomInstance? = null
+        // no longer in [tracked], so nothing may put the player in a room anymore
+        var retired = false
+    }
+}
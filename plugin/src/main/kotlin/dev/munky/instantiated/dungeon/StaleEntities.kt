@@ -0,0 +1,30 @@
+package dev.munky.instantiated.dungeon
+
+import dev.munky.instantiated.plugin
+import org.bukkit.entity.Entity
+import org.bukkit.persistence.PersistentDataType
+import java.time.Instant
+import java.time.ZoneId
+import java.time.format.DateTimeFormatter
+
+/**
+ * Entities spawned by a previous session (mobs, keys, edit mode displays) that were saved with their chunk.
+ * They are checked once as their chunk loads, rather than by sweeping the world.
+ */
+object StaleEntities {
+    private val DATE_FORMATTER: DateTimeFormatter = DateTimeFormatter.ofPattern("LL-dd hh:mm:ss a")
+    private val ZONE_ID: ZoneId = ZoneId.of("America/New_York")
+
+    /**
+     * Removes [entity] if it was spawned by Instantiated in another session.
+     * @return true if it was removed
+     */
+    fun purge(entity: Entity): Boolean {
+        val entityInit = entity.persistentDataContainer.get(DungeonManager.INIT_TIME, PersistentDataType.LONG) ?: return false
+        if (entityInit == plugin.initTime) return false
+        val date = Instant.ofEpochMilli(entityInit).atZone(ZONE_ID).format(DATE_FORMATTER)
+        plugin.logger.debug("Removed dungeon entity from a session from $date")
+        entity.remove()
+        return true
+    }
+}
@@ -0,0 +1,65 @@
+package dev.munky.instantiated.dungeon.checkpoint
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap
+import org.bukkit.block.data.BlockData
+import org.joml.Vector3ic
+
+/**
+ * Every block an instance changed after it was pasted, which is its diff against the format's schematic.
+ *
+ * Positions are stored relative to the instance origin, packed the same way vanilla packs block positions.
+ * Only touch this on the server thread, which is where blocks are set anyway.
+ */
+class BlockJournal(private val origin: Vector3ic) {
+    private val changes = Long2ObjectOpenHashMap<BlockData>()
+
+    val size: Int get() = changes.size
+
+    fun isEmpty(): Boolean = changes.isEmpty()
+
+    /**
+     * @param x world coordinate
+     * @param y world coordinate
+     * @param z world coordinate
+     */
+    fun record(x: Int, y: Int, z: Int, data: BlockData) {
+        changes.put(pack(x - origin.x(), y - origin.y(), z - origin.z()), data)
+    }
+
+    /**
+     * Iterates relative positions.
+     */
+    inline fun forEachRelative(f: (x: Int, y: Int, z: Int, data: BlockData) -> Unit) {
+        for (entry in entries()) {
+            val key = entry.longKey
+            f(unpackX(key), unpackY(key), unpackZ(key), entry.value)
+        }
+    }
+
+    @PublishedApi
+    internal fun entries() = changes.long2ObjectEntrySet()
+
+    /**
+     * Forget every change inside the given world-space bounds, inclusive.
+     */
+    fun forget(min: Vector3ic, max: Vector3ic) {
+        val i = changes.long2ObjectEntrySet().iterator()
+        while (i.hasNext()) {
+            val key = i.next().longKey
+            val x = unpackX(key) + origin.x()
+            val y = unpackY(key) + origin.y()
+            val z = unpackZ(key) + origin.z()
+            if (x in min.x()..max.x() && y in min.y()..max.y() && z in min.z()..max.z()) i.remove()
+        }
+    }
+
+    fun clear() = changes.clear()
+
+    companion object {
+        fun pack(x: Int, y: Int, z: Int): Long =
+            ((x.toLong() and 0x3FFFFFF) shl 38) or ((z.toLong() and 0x3FFFFFF) shl 12) or (y.toLong() and 0xFFF)
+        fun unpackX(packed: Long): Int = (packed shr 38).toInt()
+        fun unpackY(packed: Long): Int = ((packed shl 52) shr 52).toInt()
+        fun unpackZ(packed: Long): Int = ((packed shl 26) shr 38).toInt()
+    }
+}
@@ -0,0 +1,234 @@
+package dev.munky.instantiated.dungeon.checkpoint
+
+import dev.munky.instantiated.common.structs.IdType
+import dev.munky.instantiated.common.util.log
+import dev.munky.instantiated.data.getPluginFile
+import dev.munky.instantiated.data.loader.ComponentStorage
+import dev.munky.instantiated.data.loader.FormatStorage
+import dev.munky.instantiated.data.loader.MobStorage
+import dev.munky.instantiated.dungeon.DungeonManager
+import dev.munky.instantiated.dungeon.component.trait.StatefulTrait
+import dev.munky.instantiated.dungeon.interfaces.Format
+import dev.munky.instantiated.dungeon.interfaces.Instance
+import dev.munky.instantiated.dungeon.lifecycle.LifecycleState
+import dev.munky.instantiated.dungeon.mob.DungeonMobSpawner
+import dev.munky.instantiated.exception.DungeonExceptions
+import dev.munky.instantiated.plugin
+import dev.munky.instantiated.scheduling.Schedulers
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap
+import org.bukkit.Bukkit
+import org.bukkit.Location
+import org.bukkit.attribute.Attribute
+import org.bukkit.block.data.BlockData
+import org.bukkit.entity.Player
+import org.koin.core.component.KoinComponent
+import org.koin.core.component.get
+import java.io.File
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.time.measureTimedValue
+
+/**
+ * Saves running instances into [InstanceCheckpoint]s and restores them into free slots.
+ *
+ * Capturing only reads the [BlockJournal], the stateful traits and the live mobs, so it never touches the schematic.
+ * Both capturing and restoring have to happen on the server thread.
+ */
+class CheckpointManager : KoinComponent {
+    private val folder: File get() = getPluginFile("checkpoints")
+    // players that were offline when a checkpoint got restored, put back in when they join
+    private val reservations: MutableMap<UUID, Pair<Instance, InstanceCheckpoint.RelativePosition?>> = ConcurrentHashMap()
+
+    val checkpoints: List<String> get() = folder.listFiles { f -> f.extension == EXTENSION }
+        ?.map { it.nameWithoutExtension }
+        ?: emptyList()
+
+    fun capture(instance: Instance): InstanceCheckpoint {
+        check(Bukkit.isPrimaryThread()) { "Checkpoints can only be captured on the server thread" }
+        val origin = instance.locationInWorld
+
+        val paletteIndex = Object2IntOpenHashMap<String>().apply { defaultReturnValue(-1) }
+        val palette = ArrayList<String>()
+        val blocks = ArrayList<InstanceCheckpoint.BlockState>(instance.blockJournal.size)
+        instance.blockJournal.forEachRelative { x, y, z, data ->
+            val string = data.asString
+            var index = paletteIndex.getInt(string)
+            if (index == -1) {
+                index = palette.size
+                palette += string
+                paletteIndex.put(string, index)
+            }
+            blocks += InstanceCheckpoint.BlockState(BlockJournal.pack(x, y, z), index)
+        }
+
+        val componentStorage = get<ComponentStorage>()
+        // one copy, so every trait is saved as of the same moment
+        val states = instance.componentStates.copy()
+        val components = ArrayList<InstanceCheckpoint.ComponentState>()
+        for (room in instance.rooms.values) {
+            for (component in componentStorage[room.format] ?: continue) {
+                for (trait in component.`@traits`) {
+                    if (trait !is StatefulTrait) continue
+                    val slot = trait.slot.key ?: continue
+                    components += InstanceCheckpoint.ComponentState(
+                        room.identifier.key,
+                        slot.component,
+                        trait.identifier.key,
+                        slot.occurrence,
+                        states[trait.slot]
+                    )
+                }
+            }
+        }
+
+        val mobs = ArrayList<InstanceCheckpoint.MobState>()
+        for (entry in instance.activeMobs.all()) {
+            val living = entry.entity
+            if (!living.isValid || living.isDead) continue
+            mobs += InstanceCheckpoint.MobState(entry.room.key, entry.mob.identifier.key, living.health, relative(origin, living.location))
+        }
+
+        val players = instance.players.map { uuid ->
+            InstanceCheckpoint.PlayerState(uuid, Bukkit.getPlayer(uuid)?.let { relative(origin, it.location) })
+        }
+
+        return InstanceCheckpoint(
+            instance.format.identifier,
+            instance.uuid,
+            System.currentTimeMillis(),
+            instance.difficulty,
+            instance.doorKeys,
+            palette,
+            blocks,
+            components,
+            mobs,
+            players
+        )
+    }
+
+    /**
+     * Captures [instance] on the calling (server) thread, and writes it to disk off of it.
+     */
+    fun save(instance: Instance): Result<File> = runCatching {
+        val (checkpoint, took) = measureTimedValue { capture(instance) }
+        val file = File(folder, "${checkpoint.id}.$EXTENSION")
+        Schedulers.ASYNC.submit {
+            runCatching { CheckpointCodec.write(checkpoint, file) }
+                .onSuccess { plugin.logger.debug("Wrote checkpoint '${checkpoint.id}' of '${instance.identifier}'") }
+                .onFailure { it.log("Could not write checkpoint of '${instance.identifier}'") }
+        }
+        plugin.logger.debug("Captured '${instance.identifier}' (${checkpoint.blocks.size} blocks, ${checkpoint.mobs.size} mobs) in $took")
+        file
+    }
+
+    fun saveAll(): List<File> = get<DungeonManager>().instances
+        .filter { it.players.isNotEmpty() }
+        .mapNotNull { save(it).onFailure { t -> t.log("Could not checkpoint '${it.identifier}'") }.getOrNull() }
+
+    /**
+     * Restores the checkpoint [id] into a cached instance that has not been touched yet, or a new one if there are none.
+     * The checkpoint is applied once the instance is ready, and the file is deleted after that.
+     */
+    fun restore(id: String): Result<Instance> = runCatching {
+        check(Bukkit.isPrimaryThread()) { "Checkpoints can only be restored on the server thread" }
+        val file = File(folder, "$id.$EXTENSION")
+        if (!file.exists()) throw DungeonExceptions.DungeonDataFileNotFound.consume(file)
+        val checkpoint = CheckpointCodec.read(file)
+        val format = get<FormatStorage>().getByIdOrThrow(checkpoint.format)
+        val instance = format.cached.firstOrNull { it.blockJournal.isEmpty() && it.lifecycle.state == LifecycleState.READY }
+            ?: get<DungeonManager>().startInstance(format, Format.InstanceOption.NEW_NON_CACHED, emptyList()).getOrThrow()
+        // a new instance is still being pasted, so wait for it
+        instance.lifecycle.then(Schedulers.SYNC) {
+            apply(checkpoint, instance)
+            file.delete()
+            plugin.logger.info("Restored checkpoint '$id' of '${format.identifier}'")
+        }
+        instance
+    }
+
+    private fun apply(checkpoint: InstanceCheckpoint, instance: Instance) {
+        val origin = instance.locationInWorld
+        val world = origin.world
+        instance.difficulty = checkpoint.difficulty
+        instance.doorKeys = checkpoint.doorKeys
+
+        val palette: List<BlockData> = checkpoint.palette.map { Bukkit.createBlockData(it) }
+        for (block in checkpoint.blocks) {
+            val x = BlockJournal.unpackX(block.packed) + origin.blockX
+            val y = BlockJournal.unpackY(block.packed) + origin.blockY
+            val z = BlockJournal.unpackZ(block.packed) + origin.blockZ
+            val data = palette[block.palette]
+            world.setBlockData(x, y, z, data)
+            instance.blockJournal.record(x, y, z, data)
+        }
+
+        val componentStorage = get<ComponentStorage>()
+        Schedulers.COMPONENT_PROCESSING.submit {
+            for (state in checkpoint.components) {
+                val room = instance.rooms[IdType.ROOM with state.room] ?: continue
+                val component = componentStorage.getByUUID(state.component) ?: continue
+                // the same trait can be on a component more than once, so find the one at the same slot
+                val trait = component.`@traits`.firstOrNull {
+                    it.identifier.key == state.trait && (it as? StatefulTrait)?.slot?.key?.occurrence == state.occurrence
+                } as? StatefulTrait ?: continue
+                trait.loadState(room, state.state)
+            }
+        }
+
+        val mobStorage = get<MobStorage>()
+        for (state in checkpoint.mobs) {
+            val room = instance.rooms[IdType.ROOM with state.room] ?: continue
+            val mob = mobStorage.getById(IdType.MOB with state.mob) ?: run {
+                plugin.logger.warning("Mob '${state.mob}' from a checkpoint no longer exists")
+                null
+            } ?: continue
+            val living = DungeonMobSpawner.spawn(room, mob, absolute(origin, state.position))
+            val max = living.getAttribute(Attribute.GENERIC_MAX_HEALTH)?.value ?: living.health
+            living.health = state.health.coerceIn(0.0, max)
+        }
+
+        if (instance.cache.isCached) instance.cache = Instance.CacheState.PREVIOUSLY_CACHED
+        for (state in checkpoint.players) {
+            val player = Bukkit.getPlayer(state.uuid)
+            if (player == null) reservations[state.uuid] = instance to state.position
+            else join(player, instance, state.position)
+        }
+    }
+
+    private fun join(player: Player, instance: Instance, position: InstanceCheckpoint.RelativePosition?) {
+        instance.addPlayer(player)
+        if (position != null) player.teleport(absolute(instance.locationInWorld, position))
+    }
+
+    /**
+     * Puts a player back into the instance that was restored for them while they were offline.
+     * @return true if the player had a reservation
+     */
+    fun claimReservation(player: Player): Boolean {
+        val (instance, position) = reservations.remove(player.uniqueId) ?: return false
+        if (instance.lifecycle.target.isLeaving) return false // removed in the meantime
+        join(player, instance, position)
+        return true
+    }
+
+    private fun relative(origin: Location, location: Location) = InstanceCheckpoint.RelativePosition(
+        location.x - origin.x,
+        location.y - origin.y,
+        location.z - origin.z,
+        location.yaw,
+        location.pitch
+    )
+
+    private fun absolute(origin: Location, position: InstanceCheckpoint.RelativePosition) = Location(
+        origin.world,
+        origin.x + position.x,
+        origin.y + position.y,
+        origin.z + position.z,
+        position.yaw,
+        position.pitch
+    )
+
+    companion object {
+        const val EXTENSION = "ickpt"
+    }
+}
@@ -0,0 +1,150 @@
+package dev.munky.instantiated.dungeon.checkpoint
+
+import dev.munky.instantiated.common.structs.IdKey
+import dev.munky.instantiated.common.structs.IdType
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.util.*
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Everything needed to bring a running [Instance][dev.munky.instantiated.dungeon.interfaces.Instance] back to life
+ * in another slot, or on another server.
+ *
+ * All positions are relative to the instance's location in the world, so a checkpoint does not care where it is restored.
+ */
+class InstanceCheckpoint(
+    val format: IdKey,
+    val instance: UUID,
+    val createdAt: Long,
+    val difficulty: Double,
+    val doorKeys: Int,
+    /**
+     * Block data strings, indexed by [BlockState.palette].
+     */
+    val palette: List<String>,
+    val blocks: List<BlockState>,
+    val components: List<ComponentState>,
+    val mobs: List<MobState>,
+    val players: List<PlayerState>
+) {
+    val id: String get() = instance.toString()
+
+    class BlockState(val packed: Long, val palette: Int)
+
+    /**
+     * @param occurrence which trait of this id on the component it is, as in its [StateSlot][dev.munky.instantiated.dungeon.component.StateSlot]
+     */
+    class ComponentState(val room: String, val component: UUID, val trait: String, val occurrence: Int, val state: Int)
+
+    class MobState(val room: String, val mob: String, val health: Double, val position: RelativePosition)
+
+    /**
+     * @param position null if the player was offline when the checkpoint was taken
+     */
+    class PlayerState(val uuid: UUID, val position: RelativePosition?)
+
+    class RelativePosition(val x: Double, val y: Double, val z: Double, val yaw: Float, val pitch: Float)
+}
+
+/**
+ * The on-disk format is a gzipped stream of primitives, nothing fancy. Bump [VERSION] whenever the layout changes.
+ */
+object CheckpointCodec {
+    private const val MAGIC = 0x494E5354 // INST
+    private const val VERSION = 2
+
+    @Throws(IOException::class)
+    fun write(checkpoint: InstanceCheckpoint, file: File) {
+        file.parentFile?.mkdirs()
+        DataOutputStream(GZIPOutputStream(file.outputStream().buffered())).use { out ->
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+            out.writeUTF(checkpoint.format.key)
+            out.writeUUID(checkpoint.instance)
+            out.writeLong(checkpoint.createdAt)
+            out.writeDouble(checkpoint.difficulty)
+            out.writeInt(checkpoint.doorKeys)
+
+            out.writeInt(checkpoint.palette.size)
+            checkpoint.palette.forEach { out.writeUTF(it) }
+            out.writeInt(checkpoint.blocks.size)
+            for (block in checkpoint.blocks) {
+                out.writeLong(block.packed)
+                out.writeInt(block.palette)
+            }
+
+            out.writeInt(checkpoint.components.size)
+            for (component in checkpoint.components) {
+                out.writeUTF(component.room)
+                out.writeUUID(component.component)
+                out.writeUTF(component.trait)
+                out.writeInt(component.occurrence)
+                out.writeInt(component.state)
+            }
+
+            out.writeInt(checkpoint.mobs.size)
+            for (mob in checkpoint.mobs) {
+                out.writeUTF(mob.room)
+                out.writeUTF(mob.mob)
+                out.writeDouble(mob.health)
+                out.writePosition(mob.position)
+            }
+
+            out.writeInt(checkpoint.players.size)
+            for (player in checkpoint.players) {
+                out.writeUUID(player.uuid)
+                out.writeBoolean(player.position != null)
+                player.position?.let { out.writePosition(it) }
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    fun read(file: File): InstanceCheckpoint =
+        DataInputStream(GZIPInputStream(file.inputStream().buffered())).use { input ->
+            if (input.readInt() != MAGIC) throw IOException("'${file.name}' is not an instance checkpoint")
+            val version = input.readInt()
+            if (version != VERSION) throw IOException("Checkpoint '${file.name}' has version $version, expected $VERSION")
+            val format = IdType.DUNGEON with input.readUTF()
+            val instance = input.readUUID()
+            val createdAt = input.readLong()
+            val difficulty = input.readDouble()
+            val doorKeys = input.readInt()
+            val palette = List(input.readInt()) { input.readUTF() }
+            val blocks = List(input.readInt()) {
+                InstanceCheckpoint.BlockState(input.readLong(), input.readInt())
+            }
+            val components = List(input.readInt()) {
+                InstanceCheckpoint.ComponentState(input.readUTF(), input.readUUID(), input.readUTF(), input.readInt(), input.readInt())
+            }
+            val mobs = List(input.readInt()) {
+                InstanceCheckpoint.MobState(input.readUTF(), input.readUTF(), input.readDouble(), input.readPosition())
+            }
+            val players = List(input.readInt()) {
+                InstanceCheckpoint.PlayerState(input.readUUID(), if (input.readBoolean()) input.readPosition() else null)
+            }
+            InstanceCheckpoint(format, instance, createdAt, difficulty, doorKeys, palette, blocks, components, mobs, players)
+        }
+
+    private fun DataOutputStream.writeUUID(uuid: UUID) {
+        writeLong(uuid.mostSignificantBits)
+        writeLong(uuid.leastSignificantBits)
+    }
+
+    private fun DataInputStream.readUUID(): UUID = UUID(readLong(), readLong())
+
+    private fun DataOutputStream.writePosition(position: InstanceCheckpoint.RelativePosition) {
+        writeDouble(position.x)
+        writeDouble(position.y)
+        writeDouble(position.z)
+        writeFloat(position.yaw)
+        writeFloat(position.pitch)
+    }
+
+    private fun DataInputStream.readPosition() =
+        InstanceCheckpoint.RelativePosition(readDouble(), readDouble(), readDouble(), readFloat(), readFloat())
+}
@@ -82,6 +82,18 @@ object ComponentCodecs: CodecHolder({"Component '$it' has no registered codec"})
         "uuid", CommonJsonCodecs.UUID, TriggerOnBlockInteractComponent::uuid,
         ::TriggerOnBlockInteractComponent
     )
+    val RESET_ROOM = JsonCodec.of(
+        ResetRoomComponent::class,
+        {
+            val json = JsonObject()
+            json.add("uuid", CommonJsonCodecs.UUID.encode(it.uuid))
+            json
+        },
+        {
+            check(it is JsonObject) {"Not a json object"}
+            ResetRoomComponent(CommonJsonCodecs.UUID.decode(it.get("uuid")))
+        }
+    )
 }
 
 object TraitCodecs: CodecHolder({"Trait '$it' has no registered codec"}){ // literally just for the custom component
@@ -147,4 +159,9 @@ object TraitCodecs: CodecHolder({"Trait '$it' has no registered codec"}){ // lit
             InteractWithBlockTriggerTrait(holder.value, uses, targets)
         }
     )
+    val RESET_ROOM = JsonCodec.of(
+        ResetRoomTrait::class,
+        { JsonObject() },
+        { ResetRoomTrait() }
+    )
 }
\ No newline at end of file
@@ -0,0 +1,106 @@
+package dev.munky.instantiated.dungeon.component
+
+import dev.munky.instantiated.dungeon.component.trait.StatefulTrait
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap
+import java.util.*
+
+/**
+ * Where a [StatefulTrait] keeps its state in every instance's [ComponentStates].
+ *
+ * The component storage assigns it when the trait's component is loaded or edited. The state belongs to the component's uuid,
+ * the trait's class and which of that class on the component it is, rather than to the trait object,
+ * so the trait that replaces it after an edit reads the same state.
+ * A trait that was never assigned, or whose component is gone, reads 0 and keeps nothing.
+ */
+class StateSlot {
+    @Volatile
+    var key: Key? = null
+        private set
+
+    fun assign(component: UUID, trait: Class<*>, occurrence: Int): Key = Key(component, trait, occurrence).also { key = it }
+
+    // the same class can be on a component more than once
+    data class Key(val component: UUID, val trait: Class<*>, val occurrence: Int)
+
+    companion object {
+        @Volatile
+        internal var layout = StateLayout(emptyList())
+            private set
+
+        /**
+         * Lays the states out again for exactly [live], so keys of components that are gone take no room anymore.
+         * Instances move their states over the next time they are touched.
+         */
+        fun rebuild(live: Collection<Key>) {
+            layout = StateLayout(live)
+        }
+    }
+}
+
+/**
+ * Which index of a [ComponentStates] each live [StateSlot.Key] is at. Never changed once built.
+ */
+internal class StateLayout(keys: Collection<StateSlot.Key>) {
+    private val indexes = Object2IntOpenHashMap<StateSlot.Key>(keys.size).apply {
+        defaultReturnValue(-1)
+        for (key in keys) putIfAbsent(key, size)
+    }
+    val size: Int get() = indexes.size
+
+    fun indexOf(key: StateSlot.Key?): Int = if (key == null) -1 else indexes.getInt(key)
+
+    fun forEach(action: (StateSlot.Key, Int) -> Unit) = indexes.object2IntEntrySet().fastForEach { action(it.key, it.intValue) }
+}
+
+/**
+ * The runtime state of every [StatefulTrait] in one instance, one int for each live [StateSlot].
+ *
+ * A room format is in an instance at most once, so the trait's slot alone is enough to tell rooms apart.
+ * Slots nobody has written to yet read as 0. When the components change, the states are carried over by key
+ * to the new [StateLayout] the next time they are touched, and the states of removed components are dropped.
+ * Written from the component thread and reset from the server thread, so every access holds this object's lock.
+ */
+class ComponentStates private constructor(private var layout: StateLayout, private var values: IntArray) {
+    constructor() : this(StateLayout(emptyList()), IntArray(0))
+
+    @Synchronized
+    operator fun get(slot: StateSlot): Int {
+        val index = current().indexOf(slot.key)
+        return if (index < 0) 0 else values[index]
+    }
+
+    @Synchronized
+    operator fun set(slot: StateSlot, value: Int) {
+        val index = current().indexOf(slot.key)
+        if (index < 0) return
+        values[index] = value
+    }
+
+    /**
+     * Puts every trait back to 0, for when the instance is used again.
+     */
+    @Synchronized
+    fun reset() {
+        layout = StateSlot.layout
+        values = IntArray(layout.size)
+    }
+
+    /**
+     * The states as they are right now, unaffected by anything that happens to this one after.
+     */
+    @Synchronized
+    fun copy(): ComponentStates = ComponentStates(current(), values.copyOf())
+
+    private fun current(): StateLayout {
+        val latest = StateSlot.layout
+        if (latest === layout) return layout
+        val moved = IntArray(latest.size)
+        layout.forEach { key, index ->
+            val to = latest.indexOf(key)
+            if (to >= 0) moved[to] = values[index]
+        }
+        layout = latest
+        values = moved
+        return latest
+    }
+}
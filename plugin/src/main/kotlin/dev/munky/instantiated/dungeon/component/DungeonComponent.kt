@@ -79,6 +79,13 @@ abstract class DungeonComponent(
         }
     }
 
+    /**
+     * Compiled from the traits, which never change afterwards.
+     */
+    @ApiStatus.Internal
+    @JvmField
+    internal val plan = InvocationPlan(_traits)
+
     inline fun <reified T: Trait> hasTrait(): Boolean = hasTraitByClass(T::class)
 
     inline fun <reified T: Trait> getTrait(): T {
@@ -90,10 +97,9 @@ abstract class DungeonComponent(
 
     inline fun <reified T: Trait> getTraitOrNull(): T? = getTraitOrNullByClass(T::class)
 
-    @Suppress("UNCHECKED_CAST") // it is actually checked
-    fun <T: Trait> getTraitOrNullByClass(clazz: KClass<T>): T? = _traits.firstOrNull { clazz.isInstance(it) } as? T
+    fun <T: Trait> getTraitOrNullByClass(clazz: KClass<T>): T? = plan.traitOf(clazz.java)
 
-    fun hasTraitByClass(clazz: KClass<out Trait>): Boolean = _traits.any { clazz.isInstance(it) }
+    fun hasTraitByClass(clazz: KClass<out Trait>): Boolean = plan.has(clazz.java)
 
     operator fun <T: TraitContext> invoke(ctx: T){
         ctx.component = this
@@ -109,10 +115,7 @@ abstract class DungeonComponent(
         if (theConfig.componentLogging.value){
             plugin.logger.debug("Component invoked (${this.uuid}) on thread '${Thread.currentThread().name}'")
         }
-        for (trait in _traits) {
-            if (trait !is FunctionalTrait) continue
-            trait(ctx)
-        }
+        for (trait in plan.functional) trait(ctx)
     }
 
     @Suppress("UnstableApiUsage")
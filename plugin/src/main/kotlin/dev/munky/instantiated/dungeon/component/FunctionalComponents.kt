@@ -3,6 +3,7 @@ package dev.munky.instantiated.dungeon.component
 import dev.munky.instantiated.common.structs.Box
 import dev.munky.instantiated.common.util.copy
 import dev.munky.instantiated.dungeon.component.trait.LocatableTrait
+import dev.munky.instantiated.dungeon.component.trait.ResetRoomTrait
 import dev.munky.instantiated.dungeon.component.trait.SendCommandTrait
 import dev.munky.instantiated.dungeon.component.trait.SetBlocksTrait
 import dev.munky.instantiated.dungeon.component.trait.SpawnerTrait
@@ -59,7 +60,7 @@ class DoorComponent(
         }
     )
 
-    val isOpen get() = getTrait<SetBlocksTrait>().isOpen // TODO make open state relative to instance rather than trait (one trait handles multiples instances)
+    val isOpen get() = getTrait<SetBlocksTrait>().isOpen
 
     fun set(open: Boolean, room: RoomInstance) {
         if (isOpen(room) != open) invoke(TraitContext(room, this))
@@ -95,4 +96,10 @@ class SendCommandComponent(
             SendCommandComponent(it, uuid)
         }
     )
-}
\ No newline at end of file
+}
+
+class ResetRoomComponent(
+    override val uuid: UUID
+): DungeonComponent("reset-room", setOf(ResetRoomTrait())){
+    override val question: QuestionElement = QuestionElement.Label("Resets the room it is in when invoked")
+}
@@ -0,0 +1,38 @@
+package dev.munky.instantiated.dungeon.component
+
+import dev.munky.instantiated.dungeon.component.trait.FunctionalTrait
+import dev.munky.instantiated.dungeon.component.trait.Trait
+
+/**
+ * Everything a [DungeonComponent] needs to invoke its traits or hand them out, worked out once when it is made.
+ * Components never change their traits, they are replaced instead, so a plan lives exactly as long as its component.
+ *
+ * Invoking is a loop over [functional], already in order of [FunctionalTrait.priority], highest first.
+ * Traits are looked up by their own class and by every class and interface above it that is still a [Trait].
+ */
+class InvocationPlan(traits: Collection<Trait>) {
+    val functional: Array<FunctionalTrait> = traits
+        .filterIsInstance<FunctionalTrait>()
+        .sortedByDescending { it.priority }
+        .toTypedArray()
+
+    private val byClass: Map<Class<*>, Trait> = HashMap<Class<*>, Trait>().also { table ->
+        for (trait in traits) {
+            val seen = HashSet<Class<*>>()
+            collect(trait.javaClass, seen)
+            // the first trait of a type wins, like the linear search this replaces
+            for (clazz in seen) table.putIfAbsent(clazz, trait)
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST") // the table only maps classes to their own instances
+    fun <T : Trait> traitOf(clazz: Class<T>): T? = byClass[clazz] as T?
+
+    fun has(clazz: Class<out Trait>): Boolean = byClass.containsKey(clazz)
+
+    private fun collect(clazz: Class<*>?, into: MutableSet<Class<*>>) {
+        if (clazz == null || !Trait::class.java.isAssignableFrom(clazz) || !into.add(clazz)) return
+        collect(clazz.superclass, into)
+        for (i in clazz.interfaces) collect(i, into)
+    }
+}
@@ -7,16 +7,17 @@ import dev.munky.instantiated.data.IntraDataStores.EntityIntraData.getIntraData
 import dev.munky.instantiated.data.IntraDataStores.EntityIntraData.setIntraData
 import dev.munky.instantiated.data.config.TheConfig
 import dev.munky.instantiated.data.loader.MobStorage
-import dev.munky.instantiated.dungeon.DungeonManager
+import dev.munky.instantiated.dungeon.checkpoint.BlockJournal
+import dev.munky.instantiated.dungeon.component.StateSlot
 import dev.munky.instantiated.dungeon.component.TraitContext
 import dev.munky.instantiated.dungeon.component.TraitContextWithPlayer
 import dev.munky.instantiated.dungeon.currentDungeon
 import dev.munky.instantiated.dungeon.interfaces.RoomInstance
 import dev.munky.instantiated.dungeon.mob.DungeonMob
+import dev.munky.instantiated.dungeon.mob.MobSpawnQueue
 import dev.munky.instantiated.edit.EditModeHandler
 import dev.munky.instantiated.edit.PromptFactory
 import dev.munky.instantiated.edit.QuestionElement
-import dev.munky.instantiated.event.room.mob.DungeonMobSpawnEvent
 import dev.munky.instantiated.plugin
 import dev.munky.instantiated.scheduling.Schedulers
 import dev.munky.instantiated.theConfig
@@ -25,19 +26,14 @@ import dev.munky.instantiated.util.toVector3f
 import dev.munky.instantiated.util.toVector3i
 import io.papermc.paper.registry.RegistryKey
 import io.papermc.paper.util.Tick
-import it.unimi.dsi.fastutil.ints.Int2BooleanArrayMap
 import org.bukkit.Bukkit
 import org.bukkit.Location
 import org.bukkit.World
 import org.bukkit.block.BlockType
 import org.bukkit.block.data.BlockData
-import org.bukkit.entity.LivingEntity
 import org.bukkit.entity.Player
-import org.bukkit.entity.Zombie
-import org.bukkit.persistence.PersistentDataType
 import org.joml.Vector3i
 import org.koin.core.component.get
-import java.util.concurrent.CompletableFuture
 import kotlin.math.PI
 import kotlin.math.absoluteValue
 import kotlin.math.cos
@@ -85,12 +81,6 @@ class SpawnerTrait(
         }
     )
 
-    private data class MobData(
-        val room: RoomInstance,
-        val mob: DungeonMob,
-        val location: Location
-    )
-
     override fun <T : TraitContext> invoke0(ctx: T) {
         val component = ctx.component ?: return
         val room = ctx.room
@@ -98,8 +88,8 @@ class SpawnerTrait(
         val rLoc = room.inWorldLocation.toVector3f
         // fixed -> Most mob calculations are done off-main, only spawning unhandled mobs must be done sync
         val count = quantity.random()
-        val mobData = arrayOfNulls<MobData>(count)
-        count.times { i ->
+        val batch = ArrayList<MobSpawnQueue.Request>(count)
+        count.times {
             val mobLocation = Location(
                 room.inWorldLocation.world,
                 (locTrait.vector.x + rLoc.x).toDouble(),
@@ -115,48 +105,11 @@ class SpawnerTrait(
                 val r = Random.nextDouble() * radius // get a random magnitude to spawn within the defined circle rather than only on the perimeter
                 mobLocation.add(r * cos(angle), 0.0, r * sin(angle))
             }
-            // fixed -> the event is always called on the server thread below
-            mobData[i] = MobData(room, mob, mobLocation)
-        }
-        for (data in mobData){
-            data ?: throw IllegalStateException("The entire array should be populated")
-            val future = CompletableFuture<LivingEntity>()
-            // create future to handle mob spawns
-            future.thenAcceptAsync({
-                val newDungeonMob = data.mob.clone()
-                handleSpawned(it, room, newDungeonMob)
-                plugin.logger.debug("Properly spawned '${newDungeonMob.identifier.key}' as ${it::class.simpleName}")
-            }, Schedulers.COMPONENT_PROCESSING)
-            Schedulers.SYNC.submit {
-                val event = DungeonMobSpawnEvent(data.room, data.mob, data.location)
-                event.callEvent()
-                future.complete(event.livingEntity ?: handleUnhandledMob(event, room))
-            }
+            batch += MobSpawnQueue.Request(room, mob, mobLocation)
         }
+        // spawned on the server thread along with every other spawner's mobs, a few per tick
+        MobSpawnQueue.submit(batch)
     }
-
-    private fun handleSpawned(l: LivingEntity, room: RoomInstance, d: DungeonMob){
-        l.setIntraData(DungeonManager.NO_DESPAWN_ENTITY, Unit)
-        l.isPersistent = false
-        l.persistentDataContainer.set(
-            DungeonManager.INIT_TIME,
-            PersistentDataType.LONG,
-            plugin.initTime
-        )
-        room.parent.activeMobs.put(room.identifier, l to d)
-    }
-
-    private fun handleUnhandledMob(event: DungeonMobSpawnEvent, room: RoomInstance): Zombie =
-        event.spawnLocation.world.spawn(event.spawnLocation, Zombie::class.java) { zomb ->
-            zomb.customName("<red>I AM UN-CONFIGURED. Contact your server owner".asComponent)
-            zomb.isCustomNameVisible = true
-            zomb.setAI(false)
-            zomb.isSilent = true
-            plugin.logger.warning("Spawned an un-configured mob '${event.dungeonMob.identifier}'")
-            plugin.logger.warning("in '${room.identifier}'")
-            plugin.logger.warning("in '${room.parent.identifier}'")
-            plugin.logger.warning("at ${event.spawnLocation.x}, ${event.spawnLocation.y}, ${event.spawnLocation.z}")
-        }
 }
 
 @Suppress("UnstableApiUsage") // i want to use new material api (Typed things)
@@ -165,11 +118,12 @@ class SetBlocksTrait(
     val closeType: BlockType,
     val changeFunction: ChangeFunction,
     val blocks: MutableCollection<Vector3i>
-): FunctionalTrait("set-blocks"), EditableTrait<SetBlocksTrait> {
+): FunctionalTrait("set-blocks"), EditableTrait<SetBlocksTrait>, StatefulTrait {
     private val openData by lazy { openType.createBlockData() }
     private val closeData by lazy { closeType.createBlockData() }
-    val isOpen: (RoomInstance) -> Boolean = { _isOpen[it.hashCode()] }
-    private val _isOpen = Int2BooleanArrayMap()
+    // 1 if open, the blocks themselves are restored from the instance's block journal
+    override val slot = StateSlot()
+    val isOpen: (RoomInstance) -> Boolean = { it.parent.componentStates[slot] != 0 }
 
     override fun question(eth: EditingTraitHolder<SetBlocksTrait>): QuestionElement = QuestionElement.ForTrait(
         this,
@@ -208,19 +162,19 @@ class SetBlocksTrait(
         val room = ctx.room
         val open = isOpen(room)
         invoke(ctx, if (open) closeData else openData)
-        _isOpen[room.hashCode()] = !open
+        room.parent.componentStates[slot] = if (open) 0 else 1
     }
 
     fun <T : TraitContext> invoke(ctx: T, block: BlockData){
         val room = ctx.room
         val shift = room.inWorldLocation.toVector3i
         val shifted = blocks.map { Vector3i(it).add(shift) }
-        changeFunction.setBlocks(room.inWorldLocation.world, shifted, block)
+        changeFunction.setBlocks(room.inWorldLocation.world, shifted, block, room.parent.blockJournal)
     }
 
     private interface IChangeFunction{
-        fun setBlocks(world: World, vList: List<Vector3i>, data: BlockData)
-        fun execute(interval: Long, i: Iterator<Int>, map: Map<Int, List<Vector3i>>, data: BlockData, world: World){
+        fun setBlocks(world: World, vList: List<Vector3i>, data: BlockData, journal: BlockJournal)
+        fun execute(interval: Long, i: Iterator<Int>, map: Map<Int, List<Vector3i>>, data: BlockData, world: World, journal: BlockJournal){
             // if the plugin is disabled fuck it, the world wont be saved anyhow
             if (!plugin.state.isDisabled) Schedulers.COMPONENT_PROCESSING.repeat(Tick.of(interval).toKotlinDuration()){
                 if (!i.hasNext()) {
@@ -231,6 +185,7 @@ class SetBlocksTrait(
                 Schedulers.SYNC.submit {
                     for (v in list) {
                         world.setBlockData(v.x, v.y, v.z, data)
+                        journal.record(v.x, v.y, v.z, data)
                     }
                 }
             }
@@ -239,29 +194,29 @@ class SetBlocksTrait(
 
     enum class ChangeFunction: IChangeFunction {
         TOP_DOWN {
-            override fun setBlocks(world: World, vList: List<Vector3i>, data: BlockData) {
+            override fun setBlocks(world: World, vList: List<Vector3i>, data: BlockData, journal: BlockJournal) {
                 val map = HashMap<Int, ArrayList<Vector3i>>()
                 for (v in vList){
                     map.computeIfAbsent(v.y) { ArrayList() }.add(v)
                 }
                 val sortedKeys = map.keys.sorted().reversed()
                 val i = sortedKeys.iterator()
-                execute(1L, i, map, data, world)
+                execute(1L, i, map, data, world, journal)
             }
         },
         BOTTOM_UP {
-            override fun setBlocks(world: World, vList: List<Vector3i>, data: BlockData) {
+            override fun setBlocks(world: World, vList: List<Vector3i>, data: BlockData, journal: BlockJournal) {
                 val map = HashMap<Int, ArrayList<Vector3i>>()
                 for (v in vList){
                     map.computeIfAbsent(v.y) { ArrayList() }.add(v)
                 }
                 val sortedKeys = map.keys.sorted()
                 val i = sortedKeys.iterator()
-                execute(1L, i, map, data, world)
+                execute(1L, i, map, data, world, journal)
             }
         },
         NEGATIVE_2_POSITIVE {
-            override fun setBlocks(world: World, vList: List<Vector3i>, data: BlockData) {
+            override fun setBlocks(world: World, vList: List<Vector3i>, data: BlockData, journal: BlockJournal) {
                 val xAxis = isAlongXAxis(vList)
                 val map = HashMap<Int, ArrayList<Vector3i>>()
                 for (v in vList){
@@ -269,11 +224,11 @@ class SetBlocksTrait(
                 }
                 val sortedKeys = map.keys.sorted()
                 val i = sortedKeys.iterator()
-                execute(1L, i, map, data, world)
+                execute(1L, i, map, data, world, journal)
             }
         },
         POSITIVE_2_NEGATIVE {
-            override fun setBlocks(world: World, vList: List<Vector3i>, data: BlockData) {
+            override fun setBlocks(world: World, vList: List<Vector3i>, data: BlockData, journal: BlockJournal) {
                 val xAxis = isAlongXAxis(vList)
                 val map = HashMap<Int, ArrayList<Vector3i>>()
                 for (v in vList){
@@ -281,7 +236,7 @@ class SetBlocksTrait(
                 }
                 val sortedKeys = map.keys.sorted().reversed()
                 val i = sortedKeys.iterator()
-                execute(1L, i, map, data, world)
+                execute(1L, i, map, data, world, journal)
             }
         };
     }
@@ -318,4 +273,13 @@ class SendCommandTrait(
             eth.trait = SendCommandTrait(eth.trait.command, !eth.trait.playerDriven)
         }
     )
-}
\ No newline at end of file
+}
+
+/**
+ * Resets the room it is invoked in, see [RoomInstance.reset]. Meant for "retry room" flows.
+ */
+class ResetRoomTrait: FunctionalTrait("reset-room"){
+    override fun <T : TraitContext> invoke0(ctx: T) {
+        ctx.room.reset()
+    }
+}
@@ -3,6 +3,9 @@ package dev.munky.instantiated.dungeon.component.trait
 import dev.munky.instantiated.common.structs.IdKey
 import dev.munky.instantiated.common.structs.IdType
 import dev.munky.instantiated.common.structs.Identifiable
+import dev.munky.instantiated.dungeon.component.ComponentStates
+import dev.munky.instantiated.dungeon.component.StateSlot
+import dev.munky.instantiated.dungeon.interfaces.RoomInstance
 import dev.munky.instantiated.edit.PromptFactory
 import dev.munky.instantiated.edit.QuestionElement
 import org.joml.Vector3f
@@ -29,6 +32,20 @@ interface EditableTrait<T: Trait>{
     fun question(eth: EditingTraitHolder<T>): QuestionElement
 }
 
+/**
+ * A trait that keeps runtime state for each [Instance][dev.munky.instantiated.dungeon.interfaces.Instance] it has effects over.
+ * The state is packed into a single int so it can be written into a checkpoint and restored later.
+ * It lives in the instance's [ComponentStates], at this trait's [slot].
+ */
+interface StatefulTrait{
+    val slot: StateSlot
+    fun saveState(room: RoomInstance): Int = room.parent.componentStates[slot]
+    fun loadState(room: RoomInstance, state: Int) {
+        room.parent.componentStates[slot] = state
+    }
+    fun resetState(room: RoomInstance) = loadState(room, 0)
+}
+
 class EditingTraitHolder<T: Trait>(
     initTrait: T,
     val f: (T) -> Unit
@@ -0,0 +1,93 @@
+package dev.munky.instantiated.dungeon.component.trait
+
+import dev.munky.instantiated.dungeon.DungeonManager
+import dev.munky.instantiated.dungeon.component.DungeonComponent
+import dev.munky.instantiated.dungeon.component.TraitContext
+import dev.munky.instantiated.dungeon.interfaces.RoomFormat
+import dev.munky.instantiated.dungeon.interfaces.RoomInstance
+import dev.munky.instantiated.event.InstantiatedStateEvent
+import dev.munky.instantiated.event.ListenerFactory
+import dev.munky.instantiated.event.room.DungeonRoomEvent
+import dev.munky.instantiated.plugin
+import dev.munky.instantiated.scheduling.Schedulers
+import org.bukkit.event.Event
+import org.bukkit.event.HandlerList
+import org.bukkit.event.Listener
+import org.bukkit.event.player.PlayerEvent
+
+/**
+ * Sends events to the [EventTriggerTrait]s of the room they happened in, and to no other trigger.
+ *
+ * There is one listener per event class any trigger wants. An event is first narrowed down to a room on the thread
+ * it was called on, only from the dungeon world and only for players in an instance. Then only that room's
+ * triggers are asked for a context, and whichever matched are run together in a single component task.
+ * The routes are rebuilt from the component storage whenever it changes.
+ */
+object TriggerRouter {
+    // event class mapped to room format mapped to the triggers of that room listening for it
+    @Volatile
+    private var routes: Map<Class<out Event>, Map<RoomFormat, Array<EventTriggerTrait<*>>>> = emptyMap()
+    private val listeners = HashMap<Class<out Event>, Listener>()
+    private val manager by lazy { plugin.get<DungeonManager>() }
+
+    init {
+        ListenerFactory.registerEvent(InstantiatedStateEvent::class.java) { _ ->
+            synchronized(listeners) {
+                for (listener in listeners.values) HandlerList.unregisterAll(listener)
+                listeners.clear()
+            }
+        }
+    }
+
+    fun rebuild(components: Map<RoomFormat, List<DungeonComponent>>) {
+        val built = HashMap<Class<out Event>, HashMap<RoomFormat, MutableList<EventTriggerTrait<*>>>>()
+        for ((room, list) in components) {
+            for (component in list) {
+                for (trait in component.plan.functional) {
+                    if (trait !is EventTriggerTrait<*>) continue
+                    built.getOrPut(trait.event.java) { HashMap() }.getOrPut(room) { ArrayList() } += trait
+                }
+            }
+        }
+        routes = built.mapValues { (_, byRoom) -> byRoom.mapValues { it.value.toTypedArray() } }
+        synchronized(listeners) {
+            val iterator = listeners.entries.iterator()
+            while (iterator.hasNext()) {
+                val (clazz, listener) = iterator.next()
+                if (clazz in routes) continue
+                HandlerList.unregisterAll(listener)
+                iterator.remove()
+            }
+            for (clazz in routes.keys) {
+                listeners.getOrPut(clazz) { ListenerFactory.registerEvent(clazz) { event -> route(clazz, event) } }
+            }
+        }
+    }
+
+    private fun route(clazz: Class<out Event>, event: Event) {
+        val byRoom = routes[clazz] ?: return
+        val room = roomOf(event) ?: return
+        val triggers = byRoom[room.format] ?: return
+        var batch: ArrayList<Pair<EventTriggerTrait<*>, TraitContext>>? = null
+        for (trigger in triggers) {
+            val ctx = trigger.contextFor(event, room) ?: continue
+            (batch ?: ArrayList<Pair<EventTriggerTrait<*>, TraitContext>>(triggers.size).also { batch = it }) += trigger to ctx
+        }
+        val dispatch = batch ?: return
+        Schedulers.COMPONENT_PROCESSING.submit {
+            for ((trigger, ctx) in dispatch) trigger.fire(ctx)
+        }
+    }
+
+    private fun roomOf(event: Event): RoomInstance? = when (event) {
+        is DungeonRoomEvent -> event.room
+        is PlayerEvent -> {
+            if (event.player.world !== manager.dungeonWorld) null
+            else manager.getCurrentDungeon(event.player.uniqueId)?.getRoomAt(event.player.location)
+        }
+        else -> {
+            plugin.logger.debug("Event class '${event::class.qualifiedName}' cannot resolve a room getter")
+            null
+        }
+    }
+}
@@ -5,27 +5,20 @@ import dev.munky.instantiated.common.structs.IdType
 import dev.munky.instantiated.data.loader.ComponentStorage
 import dev.munky.instantiated.data.loader.MobStorage
 import dev.munky.instantiated.dungeon.component.DungeonComponent
+import dev.munky.instantiated.dungeon.component.StateSlot
 import dev.munky.instantiated.dungeon.component.TraitContext
 import dev.munky.instantiated.dungeon.component.TraitContextWithPlayer
-import dev.munky.instantiated.dungeon.currentDungeon
-import dev.munky.instantiated.dungeon.interfaces.Instance
 import dev.munky.instantiated.dungeon.interfaces.RoomInstance
 import dev.munky.instantiated.edit.PromptFactory
 import dev.munky.instantiated.edit.QuestionElement
-import dev.munky.instantiated.event.DungeonCacheEvent
-import dev.munky.instantiated.event.InstantiatedStateEvent
-import dev.munky.instantiated.event.ListenerFactory
-import dev.munky.instantiated.event.room.DungeonRoomEvent
 import dev.munky.instantiated.event.room.DungeonRoomPlayerEnterEvent
 import dev.munky.instantiated.event.room.DungeonRoomPlayerLeaveEvent
 import dev.munky.instantiated.event.room.mob.DungeonMobKillEvent
 import dev.munky.instantiated.plugin
-import dev.munky.instantiated.scheduling.Schedulers
 import dev.munky.instantiated.util.send
 import net.kyori.adventure.audience.Audience
 import org.bukkit.entity.Player
 import org.bukkit.event.Event
-import org.bukkit.event.HandlerList
 import org.bukkit.event.player.PlayerEvent
 import org.bukkit.event.player.PlayerInteractEvent
 import org.bukkit.inventory.ItemType
@@ -37,56 +30,29 @@ abstract class TriggerTrait(
     id: String
 ): FunctionalTrait(id){
     protected abstract val targets: Set<UUID>
-    final override fun <T : TraitContext> invoke0(ctx: T) {
-        for (target in targets) {
-            val resolved = plugin.get<ComponentStorage>().getByUUID(target)
-            resolved?.invoke(ctx) ?: plugin.logger.debug("TriggerTrait's target ($target) could not resolve")
-        }
-    }
-}
+    // set by the component storage every time it changes, so targets that get replaced are picked up
+    @Volatile
+    private var resolved: Array<DungeonComponent>? = null
 
-object EventTraitListenerHelper{
-
-    private val holders = ArrayList<ListenerHolder<*>>()
-
-    init{
-        ListenerFactory.registerEvent(InstantiatedStateEvent::class.java) { event ->
-            val i = holders.iterator()
-            while (i.hasNext()) {
-                val h = i.next()
-                h.shutdown()
-                i.remove()
+    /**
+     * Looks every target up once, instead of on every fire.
+     */
+    internal fun resolveTargets(lookup: (UUID) -> DungeonComponent?) {
+        resolved = targets.mapNotNull { target ->
+            lookup(target) ?: run {
+                plugin.logger.debug("TriggerTrait's target ($target) could not resolve")
+                null
             }
-        }
+        }.toTypedArray()
     }
 
-    fun <T: Event> registerEvent(clazz: KClass<T>, f: (T) -> Unit){
-        val holder = holders.firstOrNull { it.clazz == clazz } ?: run {
-            val ret = ListenerHolder(clazz)
-            holders.add(ret)
-            ret
-        }
-        holder.reg(f)
-    }
-
-    private class ListenerHolder<T: Event>(
-        val clazz: KClass<T>
-    ){
-        private val things = HashSet<(T) -> Unit>()
-        val listener = ListenerFactory.registerEvent(clazz.java) { event ->
-            for (con in things){ con(event) }
-        }
-        fun reg(f: Any){
-            // have to cast because of type erasure
-            // is pretty much enforced because of the class checks and
-            // type parameter on the register function
-            @Suppress("UNCHECKED_CAST")
-            val fu = f as? (T) -> Unit ?: throw IllegalArgumentException("listener reg function is not (T) -> Unit it is ${f::class.simpleName}")
-            things.add(fu)
-        }
-        fun shutdown(){
-            HandlerList.unregisterAll(listener)
+    final override fun <T : TraitContext> invoke0(ctx: T) {
+        val targets = resolved ?: run {
+            val storage = plugin.get<ComponentStorage>()
+            resolveTargets(storage::getByUUID)
+            resolved!!
         }
+        for (target in targets) target(ctx)
     }
 }
 
@@ -95,54 +61,44 @@ abstract class EventTriggerTrait<E: Event>(
     val event: KClass<E>,
     val uses: Int,
     public override val targets: Set<UUID>
-): TriggerTrait("event-trigger"){
+): TriggerTrait("event-trigger"), StatefulTrait{
 
-    private val used: WeakHashMap<Instance, Int> = WeakHashMap()
+    // how many times this has fired in the instance
+    override val slot = StateSlot()
 
-    init{
-        EventTraitListenerHelper.registerEvent(event) { handle(it) }
-    }
+    /**
+     * The context to run with if this trigger cares about [event] in [room], see [TriggerRouter].
+     */
+    @Suppress("UNCHECKED_CAST") // the router only hands out events of [event]
+    internal fun contextFor(event: Event, room: RoomInstance): TraitContext? = resolveContext(event as E, room)
 
-    private fun handle(event: E){
-        Schedulers.COMPONENT_PROCESSING.submit {
-            val ctx = resolveContext(event) ?: return@submit
-            if (!handleUses(ctx.room)) return@submit
-            val components = plugin.get<ComponentStorage>()[ctx.room.format] ?: return@submit
-            if (components.none { it.hasTraitByClass(this::class) }) return@submit
-            this.invoke0(ctx)
-        }
+    /**
+     * Runs this trigger if it has uses left in the room's instance. Component thread only.
+     */
+    internal fun fire(ctx: TraitContext) {
+        if (!handleUses(ctx.room)) return
+        this(ctx)
     }
 
     private fun handleUses(room: RoomInstance): Boolean {
         if (uses < 0) return true
-        val instanceUsed = used[room.parent] ?: 0
-        if (instanceUsed >= uses) return false
-        used[room.parent] = instanceUsed + 1
+        val states = room.parent.componentStates
+        // one step, so a reset in between is not written over
+        synchronized(states) {
+            val used = states[slot]
+            if (used >= uses) return false
+            states[slot] = used + 1
+        }
         return true
     }
 
     /**
-     * Ive been kind of using this as a condition as well, which works pretty nicely
+     * Ive been kind of using this as a condition as well, which works pretty nicely.
+     * [room] is where the event happened, already worked out by the [TriggerRouter].
      */
-    open fun resolveContext(event: E): TraitContext? = when (event) {
-        is PlayerEvent -> {
-            val instance = event.player.currentDungeon
-            val room = instance?.getRoomAt(event.player.location)
-            if (room != null) {
-                TraitContextWithPlayer(room, null, event.player)
-            } else null
-        }
-        is DungeonRoomEvent -> TraitContext(event.room, null)
-        else -> {
-            plugin.logger.debug("Event class '${event::class.qualifiedName}' cannot resolve a room getter")
-            null
-        }
-    }
-
-    init{
-        EventTraitListenerHelper.registerEvent(DungeonCacheEvent::class) {
-            used[it.instance] = 0
-        }
+    open fun resolveContext(event: E, room: RoomInstance): TraitContext? = when (event) {
+        is PlayerEvent -> TraitContextWithPlayer(room, null, event.player)
+        else -> TraitContext(room, null)
     }
 }
 
@@ -152,7 +108,7 @@ class RoomEnterTriggerTrait(
     uses: Int,
     targets: Set<UUID>
 ): EventTriggerTrait<DungeonRoomPlayerEnterEvent>(DungeonRoomPlayerEnterEvent::class, uses, targets), EditableTrait<RoomEnterTriggerTrait>{
-    override fun resolveContext(event: DungeonRoomPlayerEnterEvent): TraitContext = TraitContextWithPlayer(event.room, null, event.player)
+    override fun resolveContext(event: DungeonRoomPlayerEnterEvent, room: RoomInstance): TraitContext = TraitContextWithPlayer(event.room, null, event.player)
     override fun question(eth: EditingTraitHolder<RoomEnterTriggerTrait>): QuestionElement = QuestionElement.ForTrait(
         this,
         QuestionElement.Clickable("Uses"){
@@ -206,7 +162,7 @@ class RoomLeaveTriggerTrait(
     uses: Int,
     targets: Set<UUID>
 ): EventTriggerTrait<DungeonRoomPlayerLeaveEvent>(DungeonRoomPlayerLeaveEvent::class, uses, targets), EditableTrait<RoomLeaveTriggerTrait>{
-    override fun resolveContext(event: DungeonRoomPlayerLeaveEvent): TraitContext = TraitContextWithPlayer(event.room, null, event.player)
+    override fun resolveContext(event: DungeonRoomPlayerLeaveEvent, room: RoomInstance): TraitContext = TraitContextWithPlayer(event.room, null, event.player)
     override fun question(eth: EditingTraitHolder<RoomLeaveTriggerTrait>): QuestionElement = QuestionElement.ForTrait(
         this,
         QuestionElement.Clickable("Uses"){
@@ -226,7 +182,7 @@ class DungeonMobKillTriggerTrait(
     uses: Int,
     targets: Set<UUID>
 ): EventTriggerTrait<DungeonMobKillEvent>(DungeonMobKillEvent::class, uses, targets), EditableTrait<DungeonMobKillTriggerTrait>{
-    override fun resolveContext(event: DungeonMobKillEvent): TraitContext? =
+    override fun resolveContext(event: DungeonMobKillEvent, room: RoomInstance): TraitContext? =
         if (event.mob.identifier != mob) null
         else if (event.killer !is Player) TraitContext(event.room, null)
         else TraitContextWithPlayer(event.room, null, event.killer)
@@ -256,13 +212,10 @@ class InteractWithBlockTriggerTrait(
     uses: Int,
     targets: Set<UUID>
 ): EventTriggerTrait<PlayerInteractEvent>(PlayerInteractEvent::class, uses, targets) {
-    override fun resolveContext(event: PlayerInteractEvent): TraitContext? {
+    override fun resolveContext(event: PlayerInteractEvent, room: RoomInstance): TraitContext? {
         if (filter != null) {
             val block = event.clickedBlock?.type?.asBlockType() ?: return null
-            if (block == filter) {
-                val room = event.player.currentDungeon?.getRoomAt(event.player.location) ?: return null
-                return TraitContextWithPlayer(room, null, event.player)
-            }
+            if (block == filter) return TraitContextWithPlayer(room, null, event.player)
         }
         return null
     }
@@ -11,7 +11,7 @@ interface Format : Identifiable {
     val instances : MutableSet<out Instance>
     var spawnVector : Vector3f
     val cached : Set<Instance> get(){
-        return instances.filter { i -> i.cache.isCached }.toSet()
+        return instances.filter { i -> i.cache.isCached && !i.lifecycle.target.isLeaving }.toSet()
     }
     val rooms : MutableMap<IdKey, out RoomFormat>
     @Throws(DungeonException::class)
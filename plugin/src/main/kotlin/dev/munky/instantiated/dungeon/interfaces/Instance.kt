@@ -1,26 +1,52 @@
 package dev.munky.instantiated.dungeon.interfaces
 
+import dev.munky.instantiated.common.structs.Box
 import dev.munky.instantiated.common.structs.IdKey
 import dev.munky.instantiated.common.structs.Identifiable
-import dev.munky.instantiated.dungeon.mob.Id2WeakDungeonMobMap
+import dev.munky.instantiated.dungeon.InstanceViewDistance
+import dev.munky.instantiated.dungeon.RoomIndex
+import dev.munky.instantiated.dungeon.checkpoint.BlockJournal
+import dev.munky.instantiated.dungeon.component.ComponentStates
+import dev.munky.instantiated.dungeon.lifecycle.InstanceLifecycle
+import dev.munky.instantiated.dungeon.lifecycle.InstanceMembership
+import dev.munky.instantiated.dungeon.mob.DungeonMobRegistry
 import dev.munky.instantiated.exception.DungeonException
+import dev.munky.instantiated.util.toVector3f
 import io.papermc.paper.math.FinePosition
 import org.bukkit.Bukkit
 import org.bukkit.FluidCollisionMode
 import org.bukkit.Location
 import org.bukkit.entity.Player
 import org.bukkit.util.Vector
+import org.joml.Vector3f
 import java.util.*
 
 interface Instance : Identifiable {
     val uuid: UUID // have to initialize it in the implementation
     val format : Format
     var cache : CacheState
+    val lifecycle : InstanceLifecycle
+    /**
+     * How many players are in this instance, it removes itself a while after this hits zero.
+     */
+    val membership : InstanceMembership
     var difficulty : Double
     val rooms: LinkedHashMap<IdKey, out RoomInstance>
-    val activeMobs : Id2WeakDungeonMobMap // TODO move active mobs to outside of the instance
+    val activeMobs : DungeonMobRegistry // TODO move active mobs to outside of the instance
     val locationInWorld: Location
     var doorKeys : Int
+    /**
+     * Blocks changed since this instance was pasted. Checkpoints save this instead of scanning the whole region.
+     */
+    val blockJournal : BlockJournal
+    /**
+     * Rooms by position, see [RoomIndex]. Invalidate it whenever [rooms] or a room's box changes.
+     */
+    val roomIndex : RoomIndex
+    /**
+     * State of the components in this instance's rooms, see [ComponentStates].
+     */
+    val componentStates : ComponentStates
     val players : List<UUID>
     val onlinePlayers : List<Player> get() = players.mapNotNull { Bukkit.getPlayer(it) }
     fun spawnPlayer(player:Player) {
@@ -43,6 +69,21 @@ interface Instance : Identifiable {
         if (result != null) l.y = result.hitPosition.y + 0.25
         else l.y = oldY + 0.25
         player.teleport(l)
+        InstanceViewDistance.apply(player, bounds)
+    }
+    /**
+     * Everything a player in this instance could see, in world space.
+     */
+    val bounds: Box get() {
+        val boxes = rooms.values.map { it.box }
+        if (boxes.isEmpty()) return Box(locationInWorld.toVector3f, locationInWorld.toVector3f)
+        val min = Vector3f(boxes.first().minimum)
+        val max = Vector3f(boxes.first().maximum)
+        for (box in boxes) {
+            min.min(box.minimum)
+            max.max(box.maximum)
+        }
+        return Box(min, max)
     }
     fun addPlayer(player:Player)
     fun addPlayers(players: List<Player>){
@@ -52,6 +93,14 @@ interface Instance : Identifiable {
     fun removePlayers(players: List<UUID>){
         players.forEach { removePlayer(it) }
     }
+    /**
+     * Takes the room [id] out of [rooms], keeping [roomIndex] up to date.
+     */
+    fun removeRoom(id: IdKey): RoomInstance? {
+        val room = rooms.remove(id)
+        if (room != null) roomIndex.invalidate()
+        return room
+    }
     // fun getClosestRoom(player: Player) : RoomInstance?
     fun getRoomAt(location: FinePosition) : RoomInstance?
     @Throws(DungeonException::class)
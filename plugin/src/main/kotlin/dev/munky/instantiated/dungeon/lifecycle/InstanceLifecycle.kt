@@ -0,0 +1,137 @@
+package dev.munky.instantiated.dungeon.lifecycle
+
+import dev.munky.instantiated.common.structs.Identifiable
+import dev.munky.instantiated.common.util.log
+import dev.munky.instantiated.plugin
+import dev.munky.instantiated.scheduling.AbstractScheduler
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Where an [Instance][dev.munky.instantiated.dungeon.interfaces.Instance] is in its life.
+ * An instance only ever moves forward through these, except for re-caching, which goes from [DRAINING] back to [READY].
+ */
+enum class LifecycleState {
+    /**
+     * A slot in the world was picked, nothing is there yet
+     */
+    ALLOCATING,
+    /**
+     * The format is being pasted
+     */
+    MATERIALIZING,
+    /**
+     * Pasted and initialized, waiting for players
+     */
+    READY,
+    /**
+     * Players are in it
+     */
+    ACTIVE,
+    /**
+     * Players and mobs are being moved out
+     */
+    DRAINING,
+    /**
+     * Blocks are being cleared
+     */
+    SCRUBBING,
+    /**
+     * Gone, the slot can be reused
+     */
+    FREE;
+
+    fun canMoveTo(next: LifecycleState): Boolean = when (this) {
+        ALLOCATING -> next == MATERIALIZING || next == SCRUBBING
+        MATERIALIZING -> next == READY || next == SCRUBBING
+        READY -> next == ACTIVE || next == DRAINING
+        ACTIVE -> next == DRAINING
+        DRAINING -> next == READY || next == SCRUBBING
+        SCRUBBING -> next == FREE
+        FREE -> false
+    }
+
+    /**
+     * True once the instance has started to go away, even if it might be re-cached.
+     */
+    val isLeaving: Boolean get() = this >= DRAINING
+}
+
+/**
+ * Runs the transitions of one instance as queued work. Transitions of the same instance always run one after another,
+ * but each one runs on whatever scheduler suits it, so separate instances can be in different stages at the same time.
+ *
+ * [state] changes as soon as a transition starts, so it always says what is happening right now.
+ * Every transition is timed until its work is done and recorded in [LifecycleMetrics].
+ */
+class InstanceLifecycle(private val owner: Identifiable) {
+    @Volatile
+    var state: LifecycleState = LifecycleState.ALLOCATING
+        private set
+
+    /**
+     * The state of the last queued transition, which is where the instance is headed.
+     */
+    @Volatile
+    var target: LifecycleState = LifecycleState.ALLOCATING
+        private set
+
+    // the last queued piece of work, everything new is chained onto this
+    private var tail: CompletableFuture<*> = CompletableFuture.completedFuture(Unit)
+
+    /**
+     * Queues a move to [to], running [work] on [scheduler] once everything queued before it is done.
+     * If [work] throws, the state stays at [to] and [onFailure] is run, on the same thread, to decide what comes next.
+     *
+     * While the plugin is disabling the schedulers are gone, so the work runs right away on the calling thread.
+     */
+    @Synchronized
+    fun transition(
+        to: LifecycleState,
+        scheduler: AbstractScheduler,
+        onFailure: (Throwable) -> Unit = { it.log("Lifecycle transition of '${owner.identifier}' to $to failed") },
+        work: () -> Unit = {}
+    ): CompletableFuture<*> {
+        target = to
+        if (plugin.state.isDisabled) {
+            run(to, onFailure, work)
+            return CompletableFuture.completedFuture(Unit)
+        }
+        tail = tail.handle { _, _ -> }.thenRunAsync({ run(to, onFailure, work) }, scheduler)
+        return tail
+    }
+
+    /**
+     * Queues [work] after every transition queued so far, without changing state.
+     */
+    @Synchronized
+    fun then(scheduler: AbstractScheduler, work: () -> Unit): CompletableFuture<*> {
+        if (plugin.state.isDisabled) {
+            work()
+            return CompletableFuture.completedFuture(Unit)
+        }
+        tail = tail.handle { _, _ -> }.thenRunAsync({
+            runCatching(work).onFailure { it.log("Queued work of '${owner.identifier}' failed") }
+        }, scheduler)
+        return tail
+    }
+
+    private fun run(to: LifecycleState, onFailure: (Throwable) -> Unit, work: () -> Unit) {
+        val from = state
+        if (!from.canMoveTo(to)) {
+            plugin.logger.debug("Skipped transition of '${owner.identifier}' from $from to $to")
+            return
+        }
+        val start = System.nanoTime()
+        state = to
+        try {
+            work()
+        } catch (t: Throwable) {
+            LifecycleMetrics.failed(to)
+            onFailure(t)
+            return
+        }
+        val took = System.nanoTime() - start
+        LifecycleMetrics.record(to, took)
+        plugin.logger.debug("'${owner.identifier}' went from $from to $to in ${took / 1_000_000.0}ms")
+    }
+}
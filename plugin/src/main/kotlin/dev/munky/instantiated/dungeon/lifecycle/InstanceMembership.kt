@@ -0,0 +1,60 @@
+package dev.munky.instantiated.dungeon.lifecycle
+
+import dev.munky.instantiated.common.util.log
+import dev.munky.instantiated.data.config.TheConfig
+import dev.munky.instantiated.dungeon.interfaces.Instance
+import dev.munky.instantiated.plugin
+import dev.munky.instantiated.scheduling.Schedulers
+import org.koin.core.component.get
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration.Companion.seconds
+
+/**
+ * Counts the players in an instance. Once nobody has been in it for the configured grace period,
+ * the instance removes itself (or is re-cached) on the server thread, so nothing has to poll for empty instances.
+ *
+ * @param canReap extra condition for instances that can be waiting on someone without them being counted yet
+ */
+class InstanceMembership(
+    private val owner: Instance,
+    private val canReap: () -> Boolean = { true }
+) {
+    private val count = AtomicInteger()
+    // bumped on every change, so a reap scheduled before someone joined does nothing
+    private val generation = AtomicInteger()
+
+    val size: Int get() = count.get()
+
+    fun acquire() {
+        count.incrementAndGet()
+        generation.incrementAndGet()
+    }
+
+    fun release() {
+        if (count.updateAndGet { maxOf(0, it - 1) } == 0) scheduleReap()
+    }
+
+    /**
+     * Forgets everyone without scheduling a reap, for when the instance is already going away.
+     */
+    fun clear() {
+        count.set(0)
+        generation.incrementAndGet()
+    }
+
+    /**
+     * Removes the instance after the grace period, unless somebody joins before then.
+     */
+    fun scheduleReap() {
+        if (!plugin.state.isSafe) return
+        val scheduled = generation.incrementAndGet()
+        val grace = plugin.get<TheConfig>().emptyInstanceGracePeriod.value.seconds
+        Schedulers.SYNC.submit(grace) {
+            if (generation.get() != scheduled || count.get() > 0) return@submit
+            if (owner.cache.isCached || owner.lifecycle.target.isLeaving || !canReap()) return@submit
+            plugin.logger.debug("Reaping empty instance of '${owner.identifier}'")
+            runCatching { owner.remove(Instance.RemovalReason.NO_PLAYERS_LEFT, true) }
+                .onFailure { it.log("Could not remove an empty '${owner.identifier}'") }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package dev.munky.instantiated.dungeon.lifecycle
+
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * How long instances take to get into each [LifecycleState]. Only counts, totals and maximums are kept.
+ */
+object LifecycleMetrics {
+    private val metrics = EnumMap<LifecycleState, Metric>(LifecycleState::class.java).apply {
+        for (state in LifecycleState.entries) put(state, Metric())
+    }
+
+    internal fun record(state: LifecycleState, nanos: Long) {
+        val metric = metrics[state]!!
+        metric.count.incrementAndGet()
+        metric.totalNanos.addAndGet(nanos)
+        metric.maxNanos.accumulateAndGet(nanos, ::maxOf)
+    }
+
+    internal fun failed(state: LifecycleState) {
+        metrics[state]!!.failures.incrementAndGet()
+    }
+
+    fun snapshot(): Map<LifecycleState, Snapshot> = metrics.mapValues { (_, m) ->
+        Snapshot(m.count.get(), m.failures.get(), m.totalNanos.get(), m.maxNanos.get())
+    }
+
+    fun reset() = metrics.values.forEach {
+        it.count.set(0)
+        it.failures.set(0)
+        it.totalNanos.set(0)
+        it.maxNanos.set(0)
+    }
+
+    private class Metric {
+        val count = AtomicLong()
+        val failures = AtomicLong()
+        val totalNanos = AtomicLong()
+        val maxNanos = AtomicLong()
+    }
+
+    data class Snapshot(val count: Long, val failures: Long, val totalNanos: Long, val maxNanos: Long) {
+        val averageMillis: Double get() = if (count == 0L) 0.0 else totalNanos / count / 1_000_000.0
+        val maxMillis: Double get() = maxNanos / 1_000_000.0
+    }
+}
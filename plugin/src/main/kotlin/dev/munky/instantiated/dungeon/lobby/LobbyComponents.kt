@@ -13,15 +13,23 @@ import com.sk89q.worldedit.world.block.BlockTypes
 import dev.munky.instantiated.common.structs.Box
 import dev.munky.instantiated.common.structs.IdKey
 import dev.munky.instantiated.common.util.asOptional
+import dev.munky.instantiated.common.util.log
 import dev.munky.instantiated.dungeon.DungeonManager
+import dev.munky.instantiated.dungeon.InstanceViewDistance
+import dev.munky.instantiated.dungeon.RoomIndex
 import dev.munky.instantiated.dungeon.interfaces.Format
 import dev.munky.instantiated.dungeon.interfaces.Instance
 import dev.munky.instantiated.dungeon.interfaces.RoomFormat
 import dev.munky.instantiated.dungeon.interfaces.RoomInstance
-import dev.munky.instantiated.dungeon.mob.Id2WeakDungeonMobMap
+import dev.munky.instantiated.dungeon.lifecycle.InstanceLifecycle
+import dev.munky.instantiated.dungeon.lifecycle.InstanceMembership
+import dev.munky.instantiated.dungeon.lifecycle.LifecycleState
+import dev.munky.instantiated.dungeon.checkpoint.BlockJournal
+import dev.munky.instantiated.dungeon.component.ComponentStates
+import dev.munky.instantiated.dungeon.mob.DungeonMobRegistry
 import dev.munky.instantiated.exception.DungeonExceptions
 import dev.munky.instantiated.plugin
-import dev.munky.instantiated.util.stackMessage
+import dev.munky.instantiated.scheduling.Schedulers
 import dev.munky.instantiated.util.toBlockVector3
 import dev.munky.instantiated.util.toVector3f
 import io.papermc.paper.math.FinePosition
@@ -39,8 +47,15 @@ import java.util.*
 class LobbyFormat(
     override val identifier: IdKey,
     override var spawnVector: Vector3f,
-    var schematicFile: File
+    var schematicFile: File,
+    /**
+     * How many parties one pasted lobby holds before another one is pasted
+     */
+    var capacity: Int = DEFAULT_CAPACITY
 ) : Format{
+    companion object {
+        const val DEFAULT_CAPACITY = 8
+    }
     override val instances: MutableSet<LobbyInstance> = mutableSetOf() // functions normally
     val lobbyRoom = object : LobbyRoomFormat {
         override val parent: Format = this@LobbyFormat
@@ -62,8 +77,18 @@ class LobbyFormat(
         }
     }
     override val rooms: MutableMap<IdKey, RoomFormat> = mutableMapOf(identifier to lobbyRoom)
+    /**
+     * Lobbies are shared, so unless a new one is asked for, this hands out the first lobby that still has room for a party.
+     * [location] is only used when nothing has room and a new lobby has to be pasted.
+     */
     override fun instance(location: Location, option: Format.InstanceOption): Instance {
-        // TODO caching
+        if (option == Format.InstanceOption.CONSUME_CACHE) {
+            val open = instances.firstOrNull { it.hasRoom }
+            if (open != null) {
+                plugin.logger.debug("Joining existing lobby of '$identifier' (${open.parties.size}/$capacity parties)")
+                return open
+            }
+        }
         return LobbyInstance(this, location, option == Format.InstanceOption.CACHE)
     }
 }
@@ -71,7 +96,16 @@ interface LobbyRoomFormat : RoomFormat {
     val schematic : Clipboard
 }
 /**
- * The lobby room format holds physical info, the lobby dungeon instance holds player info
+ * A group of players that entered a lobby together, and that will be sent into a dungeon together.
+ * Only the [LobbyInstance] it is in changes [members], while holding its lock.
+ */
+class LobbyParty(val id: UUID = UUID.randomUUID()) {
+    val members: MutableSet<UUID> = LinkedHashSet()
+}
+/**
+ * The lobby room format holds physical info, the lobby dungeon instance holds player info.
+ *
+ * One lobby is shared by up to [LobbyFormat.capacity] parties, and only goes away once the last of them has left.
  */
 class LobbyInstance(
     override val format: LobbyFormat,
@@ -89,65 +123,171 @@ class LobbyInstance(
         override val inWorldLocation get() = parent.locationInWorld
         override val origin = format.origin
         override var box: Box = format.box
+        override fun restoreBlocks() {} // nothing in a lobby is meant to change
     }
     override val rooms: LinkedHashMap<IdKey, RoomInstance> = LinkedHashMap(mutableMapOf(identifier to lobbyRoom))
-    override val activeMobs: Id2WeakDungeonMobMap = Id2WeakDungeonMobMap() // unused
+    override val activeMobs: DungeonMobRegistry = DungeonMobRegistry() // unused
     override var doorKeys: Int = 0
+    override val blockJournal = BlockJournal(Vector3i(locationInWorld.blockX, locationInWorld.blockY, locationInWorld.blockZ))
     private val playerMap: MutableMap<UUID, Location> = HashMap()
     override val onlinePlayers : List<Player> get() = playerMap.keys.mapNotNull{ uuid -> Bukkit.getPlayer(uuid) }
     override val playerLocations : Map<UUID,Location> get() = playerMap
     override val players : List<UUID> get() = playerMap.keys.toList()
-    private val pastedRegion : CuboidRegion
+    override val lifecycle = InstanceLifecycle(this)
+    override val roomIndex = RoomIndex { rooms.values }
+    override val componentStates = ComponentStates()
+    // parties that are still waiting on the paste keep the lobby around too
+    override val membership = InstanceMembership(this) { synchronized(partyMap) { partyMap.isEmpty() } }
+    // party id mapped to party, a party is registered as soon as it is added even if the lobby is still pasting.
+    // membership reads it from the lifecycle threads, so it, partyByPlayer and every party's members are only touched holding its lock
+    private val partyMap: MutableMap<UUID, LobbyParty> = LinkedHashMap()
+    // member mapped to their party
+    private val partyByPlayer: MutableMap<UUID, LobbyParty> = HashMap()
+    val parties: Collection<LobbyParty> get() = synchronized(partyMap) { partyMap.values.toList() }
+    val hasRoom: Boolean get() = !lifecycle.target.isLeaving && synchronized(partyMap) { partyMap.size } < format.capacity
+    fun partyOf(player: UUID): LobbyParty? = synchronized(partyMap) { partyByPlayer[player] }
+    private lateinit var pastedRegion : CuboidRegion
     init{
-        val editSession = WorldEdit.getInstance().newEditSessionBuilder()
-            .world(BukkitAdapter.adapt(locationInWorld.world))
-            .fastMode(true)
-            .checkMemory(false)
-            .build()
-        val holder = ClipboardHolder(format.lobbyRoom.schematic)
-            .createPaste(editSession)
-            .copyEntities(false)
-            .to(locationInWorld.toBlockVector3())
-            .ignoreAirBlocks(false)
-        val operation: Operation = holder.build()
-        Operations.complete(operation)
-        pastedRegion = format.lobbyRoom.schematic.region.clone() as CuboidRegion
-        println("schem origin ${format.lobbyRoom.schematic.origin} and ${format.lobbyRoom.schematic.region}")
-        pastedRegion.shift(format.lobbyRoom.schematic.region.dimensions.multiply(-1))
-        pastedRegion.shift(locationInWorld.toBlockVector3())
-        println("min point ${pastedRegion.minimumPoint} max point ${pastedRegion.maximumPoint}")
-        editSession.close()
-        if (!this.cache.wasCached)
-            format.instances.add(this)
-        plugin.logger.debug("Injected instance '$identifier', modified ${pastedRegion.volume}")
+        format.instances.add(this) // holds the slot until FREE
+        lifecycle.transition(LifecycleState.MATERIALIZING, Schedulers.ASYNC, {
+            DungeonExceptions.Instantiation.consume(identifier, it).log("Could not paste lobby '$identifier'")
+            lifecycle.transition(LifecycleState.SCRUBBING, Schedulers.SYNC)
+            lifecycle.transition(LifecycleState.FREE, Schedulers.SYNC) { format.instances.remove(this) }
+        }) {
+            val editSession = WorldEdit.getInstance().newEditSessionBuilder()
+                .world(BukkitAdapter.adapt(locationInWorld.world))
+                .fastMode(true)
+                .checkMemory(false)
+                .build()
+            val holder = ClipboardHolder(format.lobbyRoom.schematic)
+                .createPaste(editSession)
+                .copyEntities(false)
+                .to(locationInWorld.toBlockVector3())
+                .ignoreAirBlocks(false)
+            val operation: Operation = holder.build()
+            Operations.complete(operation)
+            val region = format.lobbyRoom.schematic.region.clone() as CuboidRegion
+            region.shift(format.lobbyRoom.schematic.region.dimensions.multiply(-1))
+            region.shift(locationInWorld.toBlockVector3())
+            editSession.close()
+            pastedRegion = region
+            plugin.logger.debug("Injected instance '$identifier', modified ${pastedRegion.volume}")
+        }
+        lifecycle.transition(LifecycleState.READY, Schedulers.SYNC)
+        lifecycle.then(Schedulers.SYNC) {
+            if (lifecycle.state == LifecycleState.READY && membership.size == 0) membership.scheduleReap()
+        }
     }
+    /**
+     * Adds [players] as one party.
+     */
+    override fun addPlayers(players: List<Player>) {
+        if (players.isEmpty()) return
+        val party = LobbyParty()
+        synchronized(partyMap) {
+            for (player in players) {
+                leaveParty(player.uniqueId)
+                party.members += player.uniqueId
+                partyByPlayer[player.uniqueId] = party
+            }
+            partyMap[party.id] = party
+        }
+        players.forEach { addPlayer(it) }
+    }
+    /**
+     * Adds [player], as a party of their own if they are not already part of one.
+     */
     override fun addPlayer(player: Player) {
+        synchronized(partyMap) {
+            if (player.uniqueId !in partyByPlayer) {
+                val party = LobbyParty()
+                party.members += player.uniqueId
+                partyByPlayer[player.uniqueId] = party
+                partyMap[party.id] = party
+            }
+        }
+        when (lifecycle.state) {
+            LifecycleState.READY, LifecycleState.ACTIVE -> admit(player)
+            LifecycleState.ALLOCATING, LifecycleState.MATERIALIZING -> lifecycle.then(Schedulers.SYNC) {
+                if (player.isOnline && !lifecycle.state.isLeaving) admit(player)
+                else leaveParty(player.uniqueId)
+            }
+            else -> {
+                leaveParty(player.uniqueId)
+                plugin.logger.debug("Player (${player.name}) cannot join '$identifier' because it is ${lifecycle.state}")
+            }
+        }
+    }
+    /**
+     * Sends the whole of [party] from this lobby into a new or cached instance of [format].
+     * The party waits in the lobby until the instance is ready and is then moved straight over, keeping where they came from.
+     * If the instance never gets ready they just stay here. The lobby stays for the other parties.
+     */
+    fun route(
+        party: LobbyParty,
+        format: Format,
+        option: Format.InstanceOption = Format.InstanceOption.CONSUME_CACHE
+    ): Result<Instance> {
+        if (synchronized(partyMap) { partyMap[party.id] } !== party) return Result.failure(DungeonExceptions.Generic.consume("Party is not in lobby '$identifier'"))
+        plugin.logger.debug("Routing party of ${synchronized(partyMap) { party.members.size }} from lobby '$identifier' to '${format.identifier}'")
+        return plugin.get<DungeonManager>().startInstance(format, option, emptyList()).onSuccess { instance ->
+            instance.lifecycle.then(Schedulers.SYNC) {
+                val state = instance.lifecycle.state
+                if (state != LifecycleState.READY && state != LifecycleState.ACTIVE) {
+                    plugin.logger.warning("Could not route a party from lobby '$identifier', '${format.identifier}' is $state")
+                    return@then
+                }
+                // whoever left the party or the lobby in the meantime does not come along
+                val members = synchronized(partyMap) { party.members.toList() }.filter { it in playerMap }.mapNotNull { Bukkit.getPlayer(it) }
+                // the instance reads where they came from off of this lobby, so they are let go after
+                instance.addPlayers(members)
+                for (member in members) release(member.uniqueId)
+            }
+        }
+    }
+    /**
+     * Lets go of [player] without sending them anywhere, for when another instance already took them.
+     */
+    private fun release(player: UUID) {
+        if (playerMap.remove(player) != null) membership.release()
+        plugin.get<DungeonManager>().untrackPlayer(player, this)
+        leaveParty(player)
+    }
+    private fun leaveParty(player: UUID) {
+        synchronized(partyMap) {
+            val party = partyByPlayer.remove(player) ?: return
+            party.members.remove(player)
+            if (party.members.isEmpty()) partyMap.remove(party.id)
+        }
+    }
+    private fun admit(player: Player) {
         var location = plugin.get<DungeonManager>().getCurrentDungeon(player.uniqueId)?.playerLocations?.get(player.uniqueId)
             ?: player.location
         if (location.world == locationInWorld.world) {
             val maybeLocation = playerMap[player.uniqueId].asOptional
             location = if (maybeLocation.isPresent) maybeLocation.get() else Bukkit.getWorlds().first().spawnLocation
         }
-        playerMap[player.uniqueId] = location
+        if (playerMap.put(player.uniqueId, location) == null) membership.acquire()
+        plugin.get<DungeonManager>().trackPlayer(player.uniqueId, this)
         plugin.logger.debug("Player (${player.name}) added to '$identifier'")
         spawnPlayer(player)
         if (cache.isCached) cache = Instance.CacheState.PREVIOUSLY_CACHED
+        if (lifecycle.target == LifecycleState.READY) lifecycle.transition(LifecycleState.ACTIVE, Schedulers.SYNC)
     }
-    override fun removePlayer(player: UUID) {
+    private fun movePlayerOut(player: UUID) {
         val onlinePlayer = Bukkit.getPlayer(player)
         val teleportLocation = playerLocations[player]
-        playerMap.remove(player)
+        if (playerMap.remove(player) != null) membership.release()
+        plugin.get<DungeonManager>().untrackPlayer(player, this)
+        leaveParty(player)
+        InstanceViewDistance.restore(player)
         if (onlinePlayer != null && onlinePlayer.isOnline && teleportLocation.asOptional.isPresent && onlinePlayer.location != teleportLocation) {
             onlinePlayer.teleport(teleportLocation!!)
         }
         plugin.logger.debug("Removed player '${onlinePlayer?.name ?: player}' from dungeon '$identifier'")
-        if (players.isEmpty()) {
-            try {
-                this.remove(Instance.RemovalReason.NO_PLAYERS_LEFT, true)
-            } catch (e: Throwable) {
-                plugin.logger.severe("Could not remove instance:${e.stackMessage()}")
-            }
-        }
+    }
+    override fun removePlayer(player: UUID) {
+        movePlayerOut(player)
     }
     private fun getClosestRoom(player: Player): RoomInstance? = getRoomAt(player.location)?.let {
         if (this.lobbyRoom.box.center.distance(player.location.toVector3f) < 50) return@let this.lobbyRoom else null
@@ -157,18 +297,41 @@ class LobbyInstance(
         context: Instance.RemovalReason,
         cache: Boolean
     ) {
-        onlinePlayers.forEach{ removePlayer(it.uniqueId) }
-        if (this.cache.wasCached && cache){
-            plugin.logger.debug("Re-caching instance of '$identifier' instead of explicit removal")
-            this.cache = Instance.CacheState.CACHED
-            plugin.logger.info("Re-Cached instance of '$identifier'")
-        }else{
-            format.instances.remove(this)
+        lifecycle.transition(LifecycleState.DRAINING, Schedulers.SYNC, {
+            it.log("Could not drain lobby '$identifier', removing it instead")
+            scrub()
+        }) {
+            players.forEach { movePlayerOut(it) }
+            synchronized(partyMap) {
+                partyMap.clear()
+                partyByPlayer.clear()
+            }
+            membership.clear()
+        }
+        lifecycle.then(Schedulers.SYNC) {
+            // skipped, already failed, or already decided by an earlier removal
+            if (lifecycle.state != LifecycleState.DRAINING || lifecycle.target != LifecycleState.DRAINING) return@then
+            if (this.cache.wasCached && cache){
+                plugin.logger.debug("Re-caching instance of '$identifier' instead of explicit removal")
+                lifecycle.transition(LifecycleState.READY, Schedulers.SYNC) {
+                    this.cache = Instance.CacheState.CACHED
+                    plugin.logger.info("Re-Cached instance of '$identifier'")
+                }
+            }else{
+                scrub()
+            }
+        }
+    }
+
+    private fun scrub() {
+        lifecycle.transition(LifecycleState.SCRUBBING, Schedulers.ASYNC) {
             WorldEdit.getInstance().newEditSession(BukkitAdapter.adapt(locationInWorld.world)).use {
                 it.setBlocks(pastedRegion as Region, BlockTypes.AIR)
             }
+        }
+        lifecycle.transition(LifecycleState.FREE, Schedulers.SYNC) {
+            format.instances.remove(this)
             plugin.logger.info("Removed instance of '$identifier'")
         }
-        System.gc()
     }
 }
\ No newline at end of file
@@ -6,9 +6,7 @@ import org.bukkit.entity.LivingEntity
 
 abstract class DungeonMob : Identifiable {
 
-    open fun getEntity(room: RoomInstance) : LivingEntity? {
-        return room.parent.activeMobs[room.identifier].entries.firstOrNull { it.value == this }?.key
-    }
+    open fun getEntity(room: RoomInstance) : LivingEntity? = room.parent.activeMobs.entityOf(this)
 
     abstract var isMarked : Boolean
 
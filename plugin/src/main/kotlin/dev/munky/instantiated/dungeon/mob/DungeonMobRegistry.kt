@@ -0,0 +1,126 @@
+package dev.munky.instantiated.dungeon.mob
+
+import dev.munky.instantiated.common.structs.IdKey
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap
+import org.bukkit.entity.LivingEntity
+import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * The living dungeon mobs of one instance, by entity id, by dungeon mob and by room.
+ *
+ * Mobs are only ever taken out explicitly, when they die or leave the world, so how many are alive
+ * in a room is a counter that is always exact rather than whatever the garbage collector has gotten to.
+ */
+class DungeonMobRegistry {
+    class Entry(val room: IdKey, val entity: LivingEntity, val mob: DungeonMob)
+
+    private val byEntity = Int2ObjectOpenHashMap<Entry>()
+    // every spawn gets its own clone of the dungeon mob, so identity is enough
+    private val byMob = IdentityHashMap<DungeonMob, Entry>()
+    private val byRoom = HashMap<IdKey, MutableSet<Entry>>()
+    private val alive = Object2IntOpenHashMap<IdKey>()
+
+    fun register(room: IdKey, entity: LivingEntity, mob: DungeonMob) = registerAll(listOf(Entry(room, entity, mob)))
+
+    /**
+     * Registers a whole batch under one lock, see [DungeonMobSpawner.spawnAll].
+     */
+    @Synchronized
+    fun registerAll(entries: Collection<Entry>) {
+        for (entry in entries) {
+            unregister(entry.entity.entityId)
+            byEntity.put(entry.entity.entityId, entry)
+            byMob[entry.mob] = entry
+            byRoom.getOrPut(entry.room) { LinkedHashSet() }.add(entry)
+            alive.addTo(entry.room, 1)
+            LIVING.incrementAndGet()
+            synchronized(IDS) { IDS.set(entry.entity.entityId) }
+        }
+    }
+
+    fun unregister(entity: LivingEntity): Entry? = unregister(entity.entityId)
+
+    @Synchronized
+    fun unregister(entityId: Int): Entry? {
+        val entry = byEntity.remove(entityId) ?: return null
+        byMob.remove(entry.mob)
+        byRoom[entry.room]?.remove(entry)
+        if (alive.addTo(entry.room, -1) <= 1) alive.removeInt(entry.room)
+        LIVING.decrementAndGet()
+        synchronized(IDS) { IDS.clear(entityId) }
+        return entry
+    }
+
+    @Synchronized
+    fun entryOf(entityId: Int): Entry? = byEntity.get(entityId)
+
+    @Synchronized
+    fun entityOf(mob: DungeonMob): LivingEntity? = byMob[mob]?.entity
+
+    @Synchronized
+    fun aliveIn(room: IdKey): Int = alive.getInt(room)
+
+    fun isRoomClear(room: IdKey): Boolean = aliveIn(room) == 0
+
+    /**
+     * How many mobs are alive in the whole instance.
+     */
+    @Synchronized
+    fun size(): Int = byEntity.size
+
+    /**
+     * A copy of the mobs in [room], safe to iterate while mobs die.
+     */
+    @Synchronized
+    fun mobsIn(room: IdKey): List<Entry> = byRoom[room]?.toList() ?: emptyList()
+
+    @Synchronized
+    fun all(): List<Entry> = byEntity.values.toList()
+
+    /**
+     * Forgets every mob of [room], returning them so they can be removed from the world.
+     */
+    @Synchronized
+    fun removeRoom(room: IdKey): List<Entry> {
+        val entries = byRoom.remove(room) ?: return emptyList()
+        for (entry in entries) {
+            byEntity.remove(entry.entity.entityId)
+            byMob.remove(entry.mob)
+            synchronized(IDS) { IDS.clear(entry.entity.entityId) }
+        }
+        alive.removeInt(room)
+        LIVING.addAndGet(-entries.size)
+        return entries.toList()
+    }
+
+    @Synchronized
+    fun clear() {
+        LIVING.addAndGet(-byEntity.size)
+        synchronized(IDS) { for (id in byEntity.keys) IDS.clear(id) }
+        byEntity.clear()
+        byMob.clear()
+        byRoom.clear()
+        alive.clear()
+    }
+
+    companion object {
+        private val LIVING = AtomicInteger()
+        // entity ids of every registered dungeon mob, of every instance
+        private val IDS = BitSet()
+
+        /**
+         * How many dungeon mobs are alive across every instance.
+         */
+        val totalLiving: Int get() = LIVING.get()
+
+        /**
+         * Whether [entityId] is a registered dungeon mob of any instance. Cheap enough to ask on every event.
+         */
+        fun isDungeonMob(entityId: Int): Boolean = synchronized(IDS) { IDS[entityId] }
+    }
+
+    @Synchronized
+    override fun toString(): String = byRoom.mapValues { (_, entries) -> entries.map { it.mob.identifier } }.toString()
+}
@@ -0,0 +1,95 @@
+package dev.munky.instantiated.dungeon.mob
+
+import dev.munky.instantiated.common.util.log
+import dev.munky.instantiated.data.IntraDataStores.EntityIntraData.setIntraData
+import dev.munky.instantiated.dungeon.DungeonManager
+import dev.munky.instantiated.dungeon.interfaces.RoomInstance
+import dev.munky.instantiated.dungeon.nav.FlowFieldGoal
+import dev.munky.instantiated.event.room.mob.DungeonMobSpawnEvent
+import dev.munky.instantiated.plugin
+import dev.munky.instantiated.util.asComponent
+import org.bukkit.Bukkit
+import org.bukkit.Location
+import org.bukkit.entity.LivingEntity
+import org.bukkit.entity.Mob
+import org.bukkit.entity.Zombie
+import org.bukkit.persistence.PersistentDataType
+
+/**
+ * The one place dungeon mobs are brought into the world, so spawners and checkpoint restores
+ * end up with identically registered entities.
+ */
+object DungeonMobSpawner {
+    /**
+     * Spawns [mob] into [room], giving [DungeonMobSpawnEvent] listeners the first chance to supply the entity.
+     * Must be called on the server thread.
+     */
+    fun spawn(room: RoomInstance, mob: DungeonMob, location: Location): LivingEntity {
+        check(Bukkit.isPrimaryThread()) { "Dungeon mobs can only be spawned on the server thread" }
+        val living = spawnUnregistered(room, mob, location)
+        register(living, room, mob.clone())
+        return living
+    }
+
+    /**
+     * Spawns every request, then registers them with their instances all at once. Must be called on the server thread.
+     * A request that fails is logged and skipped, the rest still spawn.
+     */
+    fun spawnAll(requests: List<MobSpawnQueue.Request>): List<LivingEntity> {
+        check(Bukkit.isPrimaryThread()) { "Dungeon mobs can only be spawned on the server thread" }
+        val spawned = ArrayList<LivingEntity>(requests.size)
+        val entries = HashMap<DungeonMobRegistry, MutableList<DungeonMobRegistry.Entry>>()
+        for (request in requests) {
+            runCatching {
+                val living = spawnUnregistered(request.room, request.mob, request.location)
+                val mob = request.mob.clone()
+                prepare(living, request.room, mob)
+                entries.getOrPut(request.room.parent.activeMobs) { ArrayList() } += DungeonMobRegistry.Entry(request.room.identifier, living, mob)
+                spawned += living
+            }.onFailure { it.log("Could not spawn '${request.mob.identifier}' in '${request.room.identifier}'") }
+        }
+        for ((registry, batch) in entries) registry.registerAll(batch)
+        return spawned
+    }
+
+    fun register(living: LivingEntity, room: RoomInstance, mob: DungeonMob) {
+        prepare(living, room, mob)
+        room.parent.activeMobs.register(room.identifier, living, mob)
+    }
+
+    /**
+     * Listeners of [DungeonMobSpawnEvent] come first, then the mob's template from [MobTemplates].
+     */
+    private fun spawnUnregistered(room: RoomInstance, mob: DungeonMob, location: Location): LivingEntity {
+        val event = DungeonMobSpawnEvent(room, mob, location)
+        event.callEvent()
+        return event.livingEntity
+            ?: MobTemplates.stamp(mob.identifier, event.spawnLocation)
+            ?: spawnUnconfigured(event, room)
+    }
+
+    private fun prepare(living: LivingEntity, room: RoomInstance, mob: DungeonMob) {
+        living.setIntraData(DungeonManager.DUNGEON_MOB_ENTITY, room to mob)
+        living.isPersistent = false
+        living.removeWhenFarAway = false // instead of resetting ticks lived every so often
+        living.persistentDataContainer.set(
+            DungeonManager.INIT_TIME,
+            PersistentDataType.LONG,
+            plugin.initTime
+        )
+        if (living is Mob) FlowFieldGoal.attach(living, room.parent)
+        MobNameplates.create(living, mob)
+    }
+
+    private fun spawnUnconfigured(event: DungeonMobSpawnEvent, room: RoomInstance): Zombie =
+        event.spawnLocation.world.spawn(event.spawnLocation, Zombie::class.java) { zomb ->
+            zomb.customName("<red>I AM UN-CONFIGURED. Contact your server owner".asComponent)
+            zomb.isCustomNameVisible = true
+            zomb.setAI(false)
+            zomb.isSilent = true
+            plugin.logger.warning("Spawned an un-configured mob '${event.dungeonMob.identifier}'")
+            plugin.logger.warning("in '${room.identifier}'")
+            plugin.logger.warning("in '${room.parent.identifier}'")
+            plugin.logger.warning("at ${event.spawnLocation.x}, ${event.spawnLocation.y}, ${event.spawnLocation.z}")
+        }
+}
@@ -0,0 +1,123 @@
+package dev.munky.instantiated.dungeon.mob
+
+import dev.munky.instantiated.data.IntraDataStores.EntityIntraData.hasIntraData
+import dev.munky.instantiated.data.IntraDataStores.EntityIntraData.removeIntraData
+import dev.munky.instantiated.data.IntraDataStores.EntityIntraData.setIntraData
+import dev.munky.instantiated.data.IntraEntry
+import dev.munky.instantiated.data.config.TheConfig
+import dev.munky.instantiated.dungeon.PlayerPositions
+import dev.munky.instantiated.dungeon.RoomTracker
+import dev.munky.instantiated.dungeon.interfaces.Instance
+import dev.munky.instantiated.dungeon.interfaces.RoomInstance
+import dev.munky.instantiated.plugin
+import org.bukkit.Bukkit
+import org.bukkit.entity.LivingEntity
+import org.bukkit.entity.Mob
+import org.bukkit.util.Vector
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Puts the mobs of rooms nobody is near to sleep, and wakes them once somebody comes close.
+ *
+ * A dormant mob has no AI, gravity or collision, and can be hidden as well, so it costs next to nothing to tick.
+ * Rooms change state rather than mobs, so a pass only looks at each room with mobs in it.
+ * Mobs of a dormant room only fall asleep once they have no target, stand on the ground and are back inside the room,
+ * so a mob that chased someone out of its room never freezes next to them or in the air.
+ */
+object MobDormancy {
+    private class Awake(val ai: Boolean, val gravity: Boolean, val collidable: Boolean, val visible: Boolean)
+    // how the mob was before it fell asleep
+    private val AWAKE = IntraEntry<Awake>("dungeon.mob.awake")
+    private val dormantRooms: MutableSet<RoomInstance> = ConcurrentHashMap.newKeySet()
+    // only touched on the server thread
+    private val seen = HashSet<RoomInstance>()
+    private val config get() = plugin.get<TheConfig>()
+
+    fun isDormant(room: RoomInstance): Boolean = room in dormantRooms
+
+    /**
+     * Wakes or puts to sleep every room with mobs in it. Server thread only.
+     */
+    fun update(instances: Collection<Instance>) {
+        check(Bukkit.isPrimaryThread()) { "Mob dormancy can only be updated on the server thread" }
+        if (!config.mobDormancy.value) {
+            wakeAll()
+            return
+        }
+        val distance = config.mobDormancyDistance.value.toDouble()
+        seen.clear()
+        PlayerPositions.read { positions ->
+            for (instance in instances) {
+                for (room in instance.rooms.values) {
+                    if (instance.activeMobs.isRoomClear(room.identifier)) continue
+                    seen += room
+                    val active = RoomTracker.isOccupied(room) || isAnyoneNear(instance, room, positions, distance)
+                    if (active) wake(room) else sleep(room)
+                }
+            }
+        }
+        // rooms that were cleared or whose instance is gone
+        dormantRooms.removeIf { it !in seen }
+    }
+
+    fun sleep(room: RoomInstance) {
+        dormantRooms.add(room)
+        // checked every pass, mobs that could not sleep last time might be able to now
+        for (entry in room.parent.activeMobs.mobsIn(room.identifier)) {
+            if (canSleep(room, entry.entity)) sleep(entry.entity)
+        }
+    }
+
+    fun wake(room: RoomInstance) {
+        if (!dormantRooms.remove(room)) return
+        for (entry in room.parent.activeMobs.mobsIn(room.identifier)) wake(entry.entity)
+    }
+
+    fun wakeAll() {
+        for (room in dormantRooms.toList()) wake(room)
+    }
+
+    private fun canSleep(room: RoomInstance, entity: LivingEntity): Boolean {
+        if (entity is Mob && entity.target != null) return false
+        if (!entity.isOnGround) return false
+        val min = room.box.minimum
+        val max = room.box.maximum
+        return entity.x in min.x.toDouble()..max.x.toDouble()
+            && entity.y in min.y.toDouble()..max.y.toDouble()
+            && entity.z in min.z.toDouble()..max.z.toDouble()
+    }
+
+    private fun sleep(entity: LivingEntity) {
+        if (entity.hasIntraData(AWAKE)) return
+        entity.setIntraData(AWAKE, Awake(entity.hasAI(), entity.hasGravity(), entity.isCollidable, entity.isVisibleByDefault))
+        entity.setAI(false)
+        entity.setGravity(false)
+        entity.isCollidable = false
+        entity.velocity = Vector()
+        if (config.hideDormantMobs.value) entity.isVisibleByDefault = false
+    }
+
+    fun wake(entity: LivingEntity) {
+        val awake = entity.removeIntraData(AWAKE) ?: return
+        entity.setAI(awake.ai)
+        entity.setGravity(awake.gravity)
+        entity.isCollidable = awake.collidable
+        entity.isVisibleByDefault = awake.visible
+    }
+
+    private fun isAnyoneNear(instance: Instance, room: RoomInstance, positions: PlayerPositions.Snapshot, distance: Double): Boolean {
+        val min = room.box.minimum
+        val max = room.box.maximum
+        val limit = distance * distance
+        for (uuid in instance.players) {
+            val i = positions.indexOf(uuid)
+            if (i < 0) continue
+            // distance to the closest point of the box
+            val dx = positions.xs[i] - positions.xs[i].coerceIn(min.x.toDouble(), max.x.toDouble())
+            val dy = positions.ys[i] - positions.ys[i].coerceIn(min.y.toDouble(), max.y.toDouble())
+            val dz = positions.zs[i] - positions.zs[i].coerceIn(min.z.toDouble(), max.z.toDouble())
+            if (dx * dx + dy * dy + dz * dz <= limit) return true
+        }
+        return false
+    }
+}
@@ -0,0 +1,110 @@
+package dev.munky.instantiated.dungeon.mob
+
+import dev.munky.instantiated.scheduling.Schedulers
+import dev.munky.instantiated.util.asComponent
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap
+import net.kyori.adventure.text.Component
+import org.bukkit.Bukkit
+import org.bukkit.attribute.Attribute
+import org.bukkit.entity.Entity
+import org.bukkit.entity.LivingEntity
+import org.bukkit.entity.Player
+import java.util.*
+import kotlin.math.ceil
+
+/**
+ * Nameplates of dungeon mobs, with their name and health, as [PacketTextDisplay]s.
+ *
+ * A plate is shown to a player whenever they start tracking its mob and hidden when they stop,
+ * so the only entity the server knows about is the mob itself. Health changes mark a plate dirty,
+ * and dirty plates are sent once a tick no matter how often the mob was hit. Server thread only.
+ */
+object MobNameplates {
+    class Plate internal constructor(val entity: LivingEntity, private val title: Component) {
+        internal val display = PacketTextDisplay(entity)
+        internal val viewers = HashSet<UUID>()
+        internal var dirty = false
+
+        fun text(): Component {
+            val max = entity.getAttribute(Attribute.GENERIC_MAX_HEALTH)?.value ?: entity.health
+            return title.appendNewline()
+                .append("<red>❤</red> ${ceil(entity.health).toInt()}<gray>/${ceil(max).toInt()}".asComponent)
+        }
+    }
+
+    private val plates = Int2ObjectOpenHashMap<Plate>()
+    private val dirty = ArrayList<Plate>()
+
+    val size: Int get() = plates.size
+
+    fun create(entity: LivingEntity, mob: DungeonMob) {
+        val title = entity.customName() ?: Component.text(mob.identifier.key)
+        // the plate shows the name instead
+        entity.isCustomNameVisible = false
+        plates.put(entity.entityId, Plate(entity, title))
+    }
+
+    fun markDirty(entity: Entity) {
+        markDirty(plates.get(entity.entityId) ?: return)
+    }
+
+    private fun markDirty(plate: Plate) {
+        if (plate.dirty) return
+        plate.dirty = true
+        dirty += plate
+    }
+
+    /**
+     * Sends every plate that changed since the last flush to its viewers.
+     */
+    fun flush() {
+        if (dirty.isEmpty()) return
+        for (plate in dirty) {
+            plate.dirty = false
+            if (plate.viewers.isEmpty() || plates.get(plate.entity.entityId) !== plate) continue
+            val text = plate.text()
+            for (viewer in plate.viewers) plate.display.update(Bukkit.getPlayer(viewer) ?: continue, text)
+        }
+        dirty.clear()
+    }
+
+    /**
+     * Called when [player] starts tracking [entity]. The mob is only spawned on their client after that,
+     * so the plate follows a tick later.
+     */
+    fun track(player: Player, entity: Entity) {
+        if (!plates.containsKey(entity.entityId)) return
+        Schedulers.SYNC.submit {
+            val plate = plates.get(entity.entityId) ?: return@submit
+            if (!player.isOnline || !plate.viewers.add(player.uniqueId)) return@submit
+            plate.display.show(player, plate.text())
+        }
+    }
+
+    /**
+     * Called when [vehicle]'s real passengers change. Vanilla then sends its passenger list without the plate in it,
+     * so the plate is mounted again right after.
+     */
+    fun remount(vehicle: Entity) {
+        if (!plates.containsKey(vehicle.entityId)) return
+        Schedulers.SYNC.submit {
+            val plate = plates.get(vehicle.entityId) ?: return@submit
+            for (viewer in plate.viewers) plate.display.mount(Bukkit.getPlayer(viewer) ?: continue)
+        }
+    }
+
+    fun untrack(player: Player, entity: Entity) {
+        val plate = plates.get(entity.entityId) ?: return
+        if (plate.viewers.remove(player.uniqueId)) plate.display.hide(player)
+    }
+
+    fun forget(player: UUID) {
+        for (plate in plates.values) plate.viewers.remove(player)
+    }
+
+    fun remove(entity: Entity) {
+        val plate = plates.remove(entity.entityId) ?: return
+        for (viewer in plate.viewers) plate.display.hide(Bukkit.getPlayer(viewer) ?: continue)
+        plate.viewers.clear()
+    }
+}
@@ -0,0 +1,122 @@
+package dev.munky.instantiated.dungeon.mob
+
+import dev.munky.instantiated.data.config.TheConfig
+import dev.munky.instantiated.dungeon.interfaces.Instance
+import dev.munky.instantiated.dungeon.interfaces.RoomInstance
+import dev.munky.instantiated.plugin
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap
+import org.bukkit.Location
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Mobs waiting to be spawned, shared by every instance. Spawners only submit here, and a task on the server thread
+ * spawns up to the configured budget each tick, so a big wave costs a few ticks rather than one long one.
+ *
+ * It also keeps the number of living dungeon mobs under the per-instance and global limits.
+ * Requests over a limit wait in the queue until mobs die. Each instance has its own queue,
+ * and the queues take turns one mob at a time, so an instance spawning a lot cannot starve the others.
+ */
+object MobSpawnQueue {
+    data class Request(val room: RoomInstance, val mob: DungeonMob, val location: Location)
+
+    private val pending = ConcurrentHashMap<Instance, ConcurrentLinkedQueue<Request>>()
+    private val count = AtomicInteger()
+    // requests still waiting, by room
+    private val waiting = ConcurrentHashMap<RoomInstance, Int>()
+    // only touched on the server thread
+    private var turn = 0
+    private val planned = Reference2IntOpenHashMap<Instance>()
+
+    val size: Int get() = count.get()
+
+    fun waitingIn(instance: Instance): Int = pending[instance]?.size ?: 0
+
+    /**
+     * How many mobs are still waiting to be spawned into [room]. A room is not clear while any are.
+     */
+    fun pending(room: RoomInstance): Int = waiting[room] ?: 0
+
+    fun submit(batch: Collection<Request>) {
+        for ((instance, requests) in batch.groupBy { it.room.parent }) {
+            for (request in requests) waiting.merge(request.room, 1, Int::plus)
+            pending.compute(instance) { _, queue ->
+                (queue ?: ConcurrentLinkedQueue()).apply { addAll(requests) }
+            }
+            count.addAndGet(requests.size)
+        }
+    }
+
+    /**
+     * Spawns at most [budget] of the waiting requests, within the limits of [TheConfig].
+     * Requests for instances that are going away are dropped.
+     */
+    fun drain(budget: Int) {
+        if (count.get() == 0) return
+        val config = plugin.get<TheConfig>()
+        val perInstance = config.mobLimitPerInstance.value
+        val globalRoom = config.mobLimitGlobal.value - DungeonMobRegistry.totalLiving
+        val allowed = minOf(budget, globalRoom)
+        if (allowed <= 0) return
+
+        val instances = pending.keys.toList()
+        if (instances.isEmpty()) return
+        val start = Math.floorMod(turn++, instances.size)
+        val batch = ArrayList<Request>(minOf(allowed, count.get()))
+        planned.clear()
+        var progressed = true
+        while (batch.size < allowed && progressed) {
+            progressed = false
+            for (offset in instances.indices) {
+                if (batch.size >= allowed) break
+                val instance = instances[(start + offset) % instances.size]
+                val queue = pending[instance] ?: continue
+                if (instance.lifecycle.target.isLeaving) {
+                    drop(instance)
+                    continue
+                }
+                if (instance.activeMobs.size() + planned.getInt(instance) >= perInstance) continue
+                val request = queue.poll() ?: continue
+                count.decrementAndGet()
+                forget(request.room)
+                planned.addTo(instance, 1)
+                batch += request
+                progressed = true
+            }
+        }
+        for (instance in instances) pending.computeIfPresent(instance) { _, queue -> if (queue.isEmpty()) null else queue }
+        if (batch.isEmpty()) return
+        val spawned = DungeonMobSpawner.spawnAll(batch)
+        plugin.logger.debug("Spawned ${spawned.size} of ${batch.size} queued mobs, ${count.get()} left")
+    }
+
+    /**
+     * Forgets every request for [room], so a wave queued before a reset or removal does not spawn into it after.
+     */
+    fun dropRoom(room: RoomInstance) {
+        val queue = pending[room.parent] ?: return
+        for (request in queue) {
+            if (request.room === room && queue.remove(request)) {
+                count.decrementAndGet()
+                forget(room)
+            }
+        }
+    }
+
+    private fun drop(instance: Instance) {
+        val queue = pending.remove(instance) ?: return
+        count.addAndGet(-queue.size)
+        waiting.keys.removeIf { it.parent === instance }
+    }
+
+    private fun forget(room: RoomInstance) {
+        waiting.computeIfPresent(room) { _, left -> if (left <= 1) null else left - 1 }
+    }
+
+    fun clear() {
+        pending.clear()
+        waiting.clear()
+        count.set(0)
+    }
+}
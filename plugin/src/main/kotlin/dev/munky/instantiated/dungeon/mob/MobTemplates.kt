@@ -0,0 +1,71 @@
+package dev.munky.instantiated.dungeon.mob
+
+import dev.munky.instantiated.common.structs.IdKey
+import dev.munky.instantiated.common.util.log
+import org.bukkit.Bukkit
+import org.bukkit.Location
+import org.bukkit.entity.EntitySnapshot
+import org.bukkit.entity.LivingEntity
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Entity templates of dungeon mobs, by dungeon mob id.
+ *
+ * A template is the serialized form of a whole entity, so its type, attributes, equipment, name and persistent data
+ * all come along. Each one is compiled into an [EntitySnapshot] once when mobs are loaded,
+ * and spawning from it is a single copy instead of configuring a new entity field by field.
+ */
+object MobTemplates {
+    private val sources = ConcurrentHashMap<IdKey, String>()
+    private val compiled = ConcurrentHashMap<IdKey, EntitySnapshot>()
+
+    val size: Int get() = compiled.size
+
+    /**
+     * Replaces every template with [templates], compiling each. A template that does not compile is logged and left out.
+     */
+    fun load(templates: Map<IdKey, String>) {
+        sources.clear()
+        compiled.clear()
+        for ((id, source) in templates) set(id, source)
+    }
+
+    fun set(id: IdKey, source: String): Boolean {
+        val snapshot = runCatching { Bukkit.getEntityFactory().createEntitySnapshot(source) }
+            .onFailure { it.log("Could not compile the entity template of '$id'") }
+            .getOrNull() ?: return false
+        sources[id] = source
+        compiled[id] = snapshot
+        return true
+    }
+
+    /**
+     * Makes [entity] the template of [id], as it is right now.
+     */
+    fun capture(id: IdKey, entity: LivingEntity): Boolean {
+        val snapshot = entity.createSnapshot() ?: return false
+        sources[id] = snapshot.asString
+        compiled[id] = snapshot
+        return true
+    }
+
+    fun remove(id: IdKey) {
+        sources.remove(id)
+        compiled.remove(id)
+    }
+
+    fun sourceOf(id: IdKey): String? = sources[id]
+
+    fun templateOf(id: IdKey): EntitySnapshot? = compiled[id]
+
+    /**
+     * Spawns a copy of the template of [id] at [location], or null if there is none or it is not a living entity.
+     */
+    fun stamp(id: IdKey, location: Location): LivingEntity? {
+        val template = compiled[id] ?: return null
+        val entity = template.createEntity(location)
+        if (entity is LivingEntity) return entity
+        entity.remove()
+        return null
+    }
+}
@@ -0,0 +1,121 @@
+package dev.munky.instantiated.dungeon.mob
+
+import io.netty.buffer.Unpooled
+import net.kyori.adventure.text.Component
+import net.minecraft.network.FriendlyByteBuf
+import net.minecraft.network.protocol.Packet
+import net.minecraft.network.protocol.game.*
+import net.minecraft.world.entity.Display.TextDisplay
+import net.minecraft.world.entity.EntityType
+import net.minecraft.world.phys.Vec3
+import org.bukkit.craftbukkit.CraftWorld
+import org.bukkit.craftbukkit.entity.CraftPlayer
+import org.bukkit.entity.Display
+import org.bukkit.entity.Entity
+import org.bukkit.entity.Player
+import org.bukkit.util.Transformation
+import org.joml.Quaternionf
+import org.joml.Vector3f
+
+/**
+ * A text display riding [vehicle] that only exists in the clients it is sent to. The server never ticks
+ * or tracks it, it is just an entity id that packets talk about.
+ *
+ * Behind it is a real text display that is never added to a world. It hands out the entity id and uuid,
+ * and its own entity data builds the metadata packets, so no metadata index is written down here.
+ * Server thread only.
+ */
+class PacketTextDisplay(private val vehicle: Entity) {
+    private val handle = TextDisplay(EntityType.TEXT_DISPLAY, (vehicle.world as CraftWorld).handle)
+    private val display = handle.bukkitEntity as org.bukkit.entity.TextDisplay
+    val entityId: Int get() = handle.id
+    // the last text sent and the packet that sends it, the same for every viewer
+    private var text: Component? = null
+    private var textPacket: ClientboundSetEntityDataPacket? = null
+
+    init {
+        display.billboard = Display.Billboard.CENTER
+        display.transformation = Transformation(Vector3f(0f, TRANSLATION_Y, 0f), Quaternionf(), Vector3f(1f), Quaternionf())
+        handle.entityData.packDirty() // everything so far is sent as part of the spawn
+    }
+
+    /**
+     * Spawns the display on [player]'s client with [text], riding the vehicle.
+     * The vehicle has to already exist on that client.
+     */
+    fun show(player: Player, text: Component) {
+        textPacket(text)
+        val location = vehicle.location
+        send(player, ClientboundBundlePacket(listOf(
+            ClientboundAddEntityPacket(
+                handle.id, handle.uuid,
+                location.x, location.y, location.z,
+                0f, 0f,
+                EntityType.TEXT_DISPLAY, 0,
+                Vec3.ZERO, 0.0
+            ),
+            ClientboundSetEntityDataPacket(handle.id, handle.entityData.nonDefaultValues ?: emptyList()),
+            passengers()
+        )))
+    }
+
+    fun update(player: Player, text: Component) {
+        send(player, textPacket(text))
+    }
+
+    /**
+     * Sends the vehicle's passengers again with the display among them, for when vanilla sent them without it.
+     */
+    fun mount(player: Player) {
+        send(player, passengers())
+    }
+
+    fun hide(player: Player) {
+        send(player, ClientboundRemoveEntitiesPacket(handle.id))
+    }
+
+    private fun textPacket(text: Component): ClientboundSetEntityDataPacket {
+        val cached = textPacket
+        if (cached != null && text == this.text) return cached
+        display.text(text)
+        val packet = ClientboundSetEntityDataPacket(handle.id, handle.entityData.packDirty() ?: emptyList())
+        this.text = text
+        textPacket = packet
+        return packet
+    }
+
+    // the vehicle's real passengers have to be in there too, or the client drops them
+    private fun passengers(): ClientboundSetPassengersPacket {
+        val passengers = vehicle.passengers.map { it.entityId }.plus(handle.id).toIntArray()
+        return passengersPacket(vehicle.entityId, passengers)
+    }
+
+    private fun send(player: Player, packet: Packet<*>) {
+        (player as CraftPlayer).handle.connection.send(packet)
+    }
+
+    private companion object {
+        const val TRANSLATION_Y = 0.3f
+
+        /**
+         * The passenger packet can only be made from an entity that really has these passengers, so it is decoded
+         * from its wire layout instead, a var int vehicle id followed by a var int array of passenger ids, as of 1.21.
+         * The result is checked against what was asked for, so a layout change after an update fails right here
+         * instead of sending clients garbage.
+         */
+        fun passengersPacket(vehicle: Int, passengers: IntArray): ClientboundSetPassengersPacket {
+            val buffer = FriendlyByteBuf(Unpooled.buffer())
+            buffer.writeVarInt(vehicle)
+            buffer.writeVarIntArray(passengers)
+            val packet = try {
+                ClientboundSetPassengersPacket.STREAM_CODEC.decode(buffer)
+            } finally {
+                buffer.release()
+            }
+            check(packet.vehicle == vehicle && packet.passengers.contentEquals(passengers)) {
+                "The layout of ClientboundSetPassengersPacket changed, nameplates need to be updated for this server version"
+            }
+            return packet
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package dev.munky.instantiated.dungeon.nav
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap
+import it.unimi.dsi.fastutil.ints.IntArrayFIFOQueue
+
+/**
+ * How many steps every walkable cell within [range] of a target is from it, so a mob anywhere in the field
+ * only has to step to whichever neighbor is closer. One breadth first search is shared by every mob heading
+ * to the same cell, instead of each mob finding its own path.
+ */
+class FlowField private constructor(
+    private val grid: NavGrid,
+    val target: Int,
+    private val distances: Int2IntOpenHashMap
+) {
+    val size: Int get() = distances.size
+
+    fun contains(cell: Int): Boolean = distances.containsKey(cell)
+
+    /**
+     * The neighbor of [cell] that is closest to the target, or -1 if [cell] is the target or outside the field.
+     */
+    fun next(cell: Int): Int {
+        val distance = distances.get(cell)
+        if (distance <= 0) return -1
+        var best = -1
+        var bestDistance = distance
+        grid.forEachNeighbor(cell) { neighbor ->
+            val d = distances.get(neighbor)
+            if (d in 0 until bestDistance) {
+                best = neighbor
+                bestDistance = d
+            }
+        }
+        return best
+    }
+
+    /**
+     * Follows the field from [cell] at most [steps] cells, returning where it ended up.
+     */
+    fun follow(cell: Int, steps: Int): Int {
+        var current = cell
+        repeat(steps) {
+            val next = next(current)
+            if (next == -1) return current
+            current = next
+        }
+        return current
+    }
+
+    companion object {
+        const val DEFAULT_RANGE = 48
+
+        fun build(grid: NavGrid, target: Int, range: Int): FlowField {
+            val distances = Int2IntOpenHashMap().apply { defaultReturnValue(-1) }
+            if (!grid.isWalkable(target)) return FlowField(grid, target, distances)
+            val frontier = IntArrayFIFOQueue()
+            distances.put(target, 0)
+            frontier.enqueue(target)
+            while (!frontier.isEmpty) {
+                val cell = frontier.dequeueInt()
+                val distance = distances.get(cell)
+                if (distance >= range) continue
+                grid.forEachNeighbor(cell) { neighbor ->
+                    if (!distances.containsKey(neighbor)) {
+                        distances.put(neighbor, distance + 1)
+                        frontier.enqueue(neighbor)
+                    }
+                }
+            }
+            return FlowField(grid, target, distances)
+        }
+    }
+}
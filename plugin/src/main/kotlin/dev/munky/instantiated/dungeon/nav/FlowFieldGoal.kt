@@ -0,0 +1,137 @@
+package dev.munky.instantiated.dungeon.nav
+
+import com.destroystokyo.paper.entity.ai.Goal
+import com.destroystokyo.paper.entity.ai.GoalKey
+import com.destroystokyo.paper.entity.ai.GoalType
+import dev.munky.instantiated.data.config.TheConfig
+import dev.munky.instantiated.dungeon.interfaces.Instance
+import dev.munky.instantiated.dungeon.sstatic.StaticInstance
+import dev.munky.instantiated.plugin
+import org.bukkit.Bukkit
+import org.bukkit.Location
+import org.bukkit.NamespacedKey
+import org.bukkit.entity.Mob
+import org.bukkit.entity.Player
+import java.util.*
+import kotlin.math.abs
+
+/**
+ * Moves a dungeon mob towards the player it is targeting by following the shared [FlowField] of its instance's
+ * [NavGrid], so vanilla pathfinding only ever has to find its way a few blocks ahead.
+ *
+ * Once the mob is close to its target this goal lets go, so the mob's own attack goals take over the last stretch.
+ * It also never starts when there is no grid yet, or when the mob or its target is outside of it.
+ */
+class FlowFieldGoal(private val mob: Mob, private val instance: StaticInstance) : Goal<Mob> {
+    private val scratch = Location(null, 0.0, 0.0, 0.0)
+    private val targetScratch = Location(null, 0.0, 0.0, 0.0)
+    private var cooldown = 0
+    // resolved once, this is asked every tick
+    private var grid: NavGrid? = null
+    private var gridCooldown = 0
+    private var field: FlowField? = null
+
+    override fun shouldActivate(): Boolean {
+        val target = mob.target as? Player ?: return false
+        if (target.world != mob.world) return false
+        val grid = grid() ?: return false
+        mob.getLocation(scratch)
+        target.getLocation(targetScratch)
+        if (targetScratch.distanceSquared(scratch) < HAND_OFF_DISTANCE * HAND_OFF_DISTANCE) return false
+        return grid.isWalkable(cellOf(grid, scratch)) && cellOf(grid, targetScratch) >= 0
+    }
+
+    override fun shouldStayActive(): Boolean = shouldActivate()
+
+    override fun start() {
+        cooldown = 0
+    }
+
+    override fun stop() {
+        mob.pathfinder.stopPathfinding()
+    }
+
+    override fun tick() {
+        if (--cooldown > 0) return
+        cooldown = REPATH_TICKS
+        val grid = grid ?: return
+        val target = mob.target ?: return
+        val goal = standingCell(grid, target.getLocation(targetScratch))
+        // a target moving around a little keeps the field it has, it still leads right next to them
+        val current = field
+        if (goal >= 0 && (current == null || distance(grid, current.target, goal) > RETARGET_DISTANCE)) {
+            grid.flowFieldTo(goal)?.let { field = it }
+        }
+        val field = field
+        val start = cellOf(grid, mob.getLocation(scratch))
+        if (field == null || !field.contains(start)) {
+            // too far for the field or it is still being built, vanilla has to get it closer
+            mob.pathfinder.moveTo(target)
+            return
+        }
+        val next = field.follow(start, LOOKAHEAD)
+        if (next == start) return
+        val origin = instance.locationInWorld
+        scratch.set(
+            origin.blockX + grid.xOf(next) + 0.5,
+            (origin.blockY + grid.yOf(next)).toDouble(),
+            origin.blockZ + grid.zOf(next) + 0.5
+        )
+        scratch.world = mob.world
+        mob.pathfinder.moveTo(scratch)
+    }
+
+    private fun grid(): NavGrid? {
+        grid?.let { return it }
+        // still loading, no need to look every tick
+        if (--gridCooldown > 0) return null
+        gridCooldown = GRID_LOOKUP_TICKS
+        return NavGrids.gridOf(instance.format).also { grid = it }
+    }
+
+    override fun getKey(): GoalKey<Mob> = KEY
+
+    override fun getTypes(): EnumSet<GoalType> = EnumSet.of(GoalType.MOVE)
+
+    private fun cellOf(grid: NavGrid, location: Location): Int {
+        val origin = instance.locationInWorld
+        return grid.cellAt(location.x - origin.blockX, location.y - origin.blockY, location.z - origin.blockZ)
+    }
+
+    private fun distance(grid: NavGrid, a: Int, b: Int): Int = maxOf(
+        abs(grid.xOf(a) - grid.xOf(b)),
+        abs(grid.yOf(a) - grid.yOf(b)),
+        abs(grid.zOf(a) - grid.zOf(b))
+    )
+
+    // a jumping or falling player is still heading to the block under them
+    private fun standingCell(grid: NavGrid, location: Location): Int {
+        var cell = cellOf(grid, location)
+        repeat(3) {
+            if (cell < 0 || grid.isWalkable(cell)) return cell
+            cell = grid.cell(grid.xOf(cell), grid.yOf(cell) - 1, grid.zOf(cell))
+        }
+        return cell
+    }
+
+    companion object {
+        private const val HAND_OFF_DISTANCE = 3.0
+        private const val REPATH_TICKS = 10
+        private const val LOOKAHEAD = 6
+        private const val RETARGET_DISTANCE = 3
+        private const val GRID_LOOKUP_TICKS = 20
+        // before vanilla movement goals
+        private const val PRIORITY = 1
+        val KEY: GoalKey<Mob> = GoalKey.of(Mob::class.java, NamespacedKey(plugin, "flow_field"))
+
+        /**
+         * Gives [mob] this goal if flow fields are enabled and it is in a static instance.
+         */
+        fun attach(mob: Mob, instance: Instance) {
+            if (instance !is StaticInstance) return
+            if (!plugin.get<TheConfig>().flowFieldNavigation.value) return
+            NavGrids.gridOf(instance.format) // start loading the grid for later
+            Bukkit.getMobGoals().addGoal(mob, PRIORITY, FlowFieldGoal(mob, instance))
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package dev.munky.instantiated.dungeon.nav
+
+import com.sk89q.worldedit.extent.clipboard.Clipboard
+import com.sk89q.worldedit.math.BlockVector3
+import dev.munky.instantiated.scheduling.Schedulers
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.floor
+
+/**
+ * Which blocks of a schematic a mob can stand in, in clipboard space relative to the clipboard origin,
+ * so the same grid works for every instance no matter where it was pasted.
+ *
+ * A block is walkable when it and the block above it do not block movement and the block below does.
+ * Grids are read only once built, and hand out [FlowField]s towards a target that every mob chasing it shares.
+ */
+class NavGrid private constructor(
+    val minX: Int,
+    val minY: Int,
+    val minZ: Int,
+    val sizeX: Int,
+    val sizeY: Int,
+    val sizeZ: Int,
+    private val walkable: BitSet
+) {
+    // target cell mapped to its flow field, least recently used first
+    private val fields = object : LinkedHashMap<Int, FlowField>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Int, FlowField>?): Boolean = size > MAX_FIELDS
+    }
+
+    // targets whose fields are being built right now
+    private val building: MutableSet<Int> = ConcurrentHashMap.newKeySet()
+
+    val walkableCount: Int get() = walkable.cardinality()
+
+    /**
+     * The cell at a position relative to the clipboard origin, or -1 if it is outside the grid.
+     */
+    fun cellAt(x: Double, y: Double, z: Double): Int = cell(floor(x).toInt(), floor(y).toInt(), floor(z).toInt())
+
+    fun cell(x: Int, y: Int, z: Int): Int {
+        val lx = x - minX
+        val ly = y - minY
+        val lz = z - minZ
+        if (lx !in 0 until sizeX || ly !in 0 until sizeY || lz !in 0 until sizeZ) return -1
+        return (ly * sizeZ + lz) * sizeX + lx
+    }
+
+    fun isWalkable(cell: Int): Boolean = cell >= 0 && walkable[cell]
+
+    fun xOf(cell: Int): Int = cell % sizeX + minX
+    fun zOf(cell: Int): Int = (cell / sizeX) % sizeZ + minZ
+    fun yOf(cell: Int): Int = cell / (sizeX * sizeZ) + minY
+
+    /**
+     * Calls [f] with every walkable cell a mob can step to from [cell], one block sideways and at most one up or down.
+     */
+    inline fun forEachNeighbor(cell: Int, f: (Int) -> Unit) {
+        val x = xOf(cell)
+        val y = yOf(cell)
+        val z = zOf(cell)
+        for (dir in 0 until 4) {
+            val nx = x + DX[dir]
+            val nz = z + DZ[dir]
+            for (dy in -1..1) {
+                val neighbor = cell(nx, y + dy, nz)
+                if (isWalkable(neighbor)) f(neighbor)
+            }
+        }
+    }
+
+    /**
+     * The flow field towards [target] if it has been built. The first time any mob asks for it,
+     * it starts being built off the server thread and this returns null until it is done.
+     */
+    fun flowFieldTo(target: Int): FlowField? {
+        synchronized(fields) { fields[target]?.let { return it } }
+        if (building.add(target)) Schedulers.ASYNC.submit {
+            try {
+                val field = FlowField.build(this, target, FlowField.DEFAULT_RANGE)
+                synchronized(fields) { fields[target] = field }
+            } finally {
+                building.remove(target)
+            }
+        }
+        return null
+    }
+
+    fun write(out: DataOutputStream) {
+        out.writeInt(MAGIC)
+        out.writeInt(VERSION)
+        out.writeInt(minX); out.writeInt(minY); out.writeInt(minZ)
+        out.writeInt(sizeX); out.writeInt(sizeY); out.writeInt(sizeZ)
+        val words = walkable.toLongArray()
+        out.writeInt(words.size)
+        for (word in words) out.writeLong(word)
+    }
+
+    companion object {
+        private const val MAGIC = 0x4E415647 // NAVG
+        private const val VERSION = 1
+        private const val MAX_FIELDS = 64
+        val DX = intArrayOf(1, -1, 0, 0)
+        val DZ = intArrayOf(0, 0, 1, -1)
+
+        fun read(input: DataInputStream): NavGrid {
+            check(input.readInt() == MAGIC) { "Not a navigation grid" }
+            val version = input.readInt()
+            check(version == VERSION) { "Navigation grid version $version is not $VERSION" }
+            val minX = input.readInt(); val minY = input.readInt(); val minZ = input.readInt()
+            val sizeX = input.readInt(); val sizeY = input.readInt(); val sizeZ = input.readInt()
+            val words = LongArray(input.readInt()) { input.readLong() }
+            return NavGrid(minX, minY, minZ, sizeX, sizeY, sizeZ, BitSet.valueOf(words))
+        }
+
+        /**
+         * Scans the whole of [clipboard]. Expensive, which is why grids are cached on disk.
+         */
+        fun compute(clipboard: Clipboard): NavGrid {
+            val region = clipboard.region
+            val origin = clipboard.origin
+            val min = region.minimumPoint
+            val max = region.maximumPoint
+            val sizeX = max.x() - min.x() + 1
+            val sizeY = max.y() - min.y() + 1
+            val sizeZ = max.z() - min.z() + 1
+            val walkable = BitSet(sizeX * sizeY * sizeZ)
+            // whether each block of one column blocks movement, reused for every column
+            val blocking = BooleanArray(sizeY)
+            for (x in 0 until sizeX) {
+                for (z in 0 until sizeZ) {
+                    for (y in 0 until sizeY) {
+                        val block = clipboard.getBlock(BlockVector3.at(min.x() + x, min.y() + y, min.z() + z))
+                        blocking[y] = block.blockType.material.isMovementBlocker
+                    }
+                    // the floor has to be in the schematic, the headroom can be above it
+                    for (y in 1 until sizeY) {
+                        if (blocking[y] || !blocking[y - 1]) continue
+                        if (y + 1 < sizeY && blocking[y + 1]) continue
+                        walkable.set((y * sizeZ + z) * sizeX + x)
+                    }
+                }
+            }
+            return NavGrid(
+                min.x() - origin.x(), min.y() - origin.y(), min.z() - origin.z(),
+                sizeX, sizeY, sizeZ,
+                walkable
+            )
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package dev.munky.instantiated.dungeon.nav
+
+import dev.munky.instantiated.common.util.log
+import dev.munky.instantiated.data.getPluginFile
+import dev.munky.instantiated.dungeon.sstatic.StaticFormat
+import dev.munky.instantiated.plugin
+import dev.munky.instantiated.scheduling.Schedulers
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.security.MessageDigest
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import kotlin.time.measureTimedValue
+
+/**
+ * One [NavGrid] per schematic, shared by every instance of every format that uses it.
+ *
+ * Grids are kept in memory and saved in the plugin folder under the hash of the schematic they came from,
+ * so a schematic is only ever scanned again once its contents change, and copies of the same schematic share a grid.
+ * A file is only hashed again once it was modified. Hashing, loading and computing happen off the server thread,
+ * and until a grid is ready there simply is none, so mobs fall back to vanilla pathfinding.
+ */
+object NavGrids {
+    private val folder: File get() = getPluginFile("navigation")
+    // schematic file as it was last seen mapped to the hash of its contents
+    private val hashes = ConcurrentHashMap<Stamp, CompletableFuture<String?>>()
+    // schematic hash mapped to its grid
+    private val grids = ConcurrentHashMap<String, CompletableFuture<NavGrid?>>()
+
+    private data class Stamp(val path: String, val modified: Long)
+
+    /**
+     * The grid of [format]'s schematic if it is ready, otherwise starts getting it ready and returns null.
+     */
+    fun gridOf(format: StaticFormat): NavGrid? {
+        val file = format.schematic ?: return null
+        val stamp = Stamp(file.absolutePath, file.lastModified())
+        val hashing = hashes[stamp] ?: run {
+            // a changed schematic gets a new stamp, the old one and any grid only it used are no longer needed
+            if (hashes.keys.removeIf { it.path == stamp.path && it != stamp }) {
+                val used = hashes.values.mapNotNullTo(HashSet()) { it.getNow(null) }
+                grids.keys.retainAll(used)
+            }
+            hashes.computeIfAbsent(stamp) {
+                CompletableFuture.supplyAsync({ hash(file) }, Schedulers.ASYNC).exceptionally {
+                    it.log("Could not hash schematic '${file.name}'")
+                    null
+                }
+            }
+        }
+        val hash = hashing.getNow(null) ?: return null
+        return grids.computeIfAbsent(hash) {
+            CompletableFuture.supplyAsync({ load(format, file, hash) }, Schedulers.ASYNC).exceptionally {
+                it.log("Could not get the navigation grid of '${file.name}'")
+                null
+            }
+        }.getNow(null)
+    }
+
+    fun clear() {
+        hashes.clear()
+        grids.clear()
+    }
+
+    private fun load(format: StaticFormat, schematic: File, hash: String): NavGrid? {
+        val cached = File(folder, "$hash.$EXTENSION")
+        if (cached.exists()) {
+            runCatching {
+                DataInputStream(GZIPInputStream(cached.inputStream().buffered())).use { return NavGrid.read(it) }
+            }.onFailure { it.log("Navigation grid '${cached.name}' is unreadable, computing it again") }
+        }
+        val template = format.template ?: return null
+        val (grid, time) = measureTimedValue { NavGrid.compute(template) }
+        plugin.logger.debug("Computed the navigation grid of '${schematic.name}' in $time, ${grid.walkableCount} walkable blocks")
+        folder.mkdirs()
+        DataOutputStream(GZIPOutputStream(cached.outputStream().buffered())).use { grid.write(it) }
+        return grid
+    }
+
+    private fun hash(file: File): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        file.inputStream().buffered().use { input ->
+            val buffer = ByteArray(8192)
+            while (true) {
+                val read = input.read(buffer)
+                if (read < 0) break
+                digest.update(buffer, 0, read)
+            }
+        }
+        return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    private const val EXTENSION = "nav"
+}
@@ -2,12 +2,18 @@ package dev.munky.instantiated.dungeon.procedural
 
 import dev.munky.instantiated.common.structs.IdKey
 import dev.munky.instantiated.dungeon.DungeonManager
+import dev.munky.instantiated.dungeon.RoomIndex
 import dev.munky.instantiated.dungeon.interfaces.Instance
 import dev.munky.instantiated.dungeon.interfaces.RoomInstance
-import dev.munky.instantiated.dungeon.mob.Id2WeakDungeonMobMap
+import dev.munky.instantiated.dungeon.lifecycle.InstanceLifecycle
+import dev.munky.instantiated.dungeon.lifecycle.InstanceMembership
+import dev.munky.instantiated.dungeon.checkpoint.BlockJournal
+import dev.munky.instantiated.dungeon.component.ComponentStates
+import dev.munky.instantiated.dungeon.mob.DungeonMobRegistry
 import io.papermc.paper.math.FinePosition
 import org.bukkit.Location
 import org.bukkit.entity.Player
+import org.joml.Vector3i
 import java.util.*
 
 class ProceduralInstance(
@@ -19,14 +25,19 @@ class ProceduralInstance(
     override val uuid: UUID = UUID.randomUUID()
     override var cache: Instance.CacheState = if (cache) Instance.CacheState.CACHED else Instance.CacheState.NEVER_CACHED
     override var difficulty: Double = DungeonManager.DEFAULT_DIFFICULTY
+    override val lifecycle = InstanceLifecycle(this)
+    override val roomIndex = RoomIndex { rooms.values }
+    override val componentStates = ComponentStates()
+    override val membership = InstanceMembership(this)
     override val rooms: LinkedHashMap<IdKey, ProceduralRoomInstance>
     init {
         val generator = SimpleProceduralGenerator(format,10)
         generator.generate()
         rooms = generator.getRoomMap(this)
     }
-    override val activeMobs: Id2WeakDungeonMobMap = Id2WeakDungeonMobMap()
+    override val activeMobs: DungeonMobRegistry = DungeonMobRegistry()
     override var doorKeys: Int = 0
+    override val blockJournal = BlockJournal(Vector3i(locationInWorld.blockX, locationInWorld.blockY, locationInWorld.blockZ))
     override val players: List<UUID> get() = playerMap.keys.toList()
     override val playerLocations: Map<UUID, Location> get() = playerMap
     // main backing map for players
@@ -37,9 +48,7 @@ class ProceduralInstance(
     override fun removePlayer(player: UUID) {
         TODO("Not yet implemented")
     }
-    override fun getRoomAt(location: FinePosition): RoomInstance? {
-        TODO("Not yet implemented")
-    }
+    override fun getRoomAt(location: FinePosition): RoomInstance? = roomIndex.roomAt(location.x(), location.y(), location.z())
     override fun remove(context: Instance.RemovalReason, cache: Boolean) {
         TODO("Not yet implemented")
     }
@@ -1,8 +1,14 @@
 package dev.munky.instantiated.dungeon.procedural
 
+import com.sk89q.worldedit.WorldEdit
+import com.sk89q.worldedit.bukkit.BukkitAdapter
+import com.sk89q.worldedit.function.operation.ForwardExtentCopy
+import com.sk89q.worldedit.function.operation.Operations
 import dev.munky.instantiated.common.structs.Box
 import dev.munky.instantiated.common.structs.IdKey
 import dev.munky.instantiated.dungeon.interfaces.RoomInstance
+import dev.munky.instantiated.plugin
+import dev.munky.instantiated.util.toBlockVector3
 import dev.munky.instantiated.util.toLocation
 import dev.munky.instantiated.util.toVector3f
 import org.bukkit.Location
@@ -16,4 +22,20 @@ class ProceduralRoomInstance(
     override val origin = format.origin
     override val inWorldLocation: Location = parent.locationInWorld.toVector3f.add(Vector3f(origin)).toLocation(parent.locationInWorld.world)
     override val identifier: IdKey = format.identifier
+    /**
+     * Pastes the room's own schematic back over it, with the schematic origin at [inWorldLocation].
+     */
+    override fun restoreBlocks() {
+        val schematic = format.schematic
+        WorldEdit.getInstance().newEditSessionBuilder()
+            .world(BukkitAdapter.adapt(inWorldLocation.world))
+            .fastMode(true)
+            .checkMemory(false)
+            .build().use { session ->
+                val copy = ForwardExtentCopy(schematic, schematic.region, schematic.origin, session, inWorldLocation.toBlockVector3())
+                copy.isCopyingEntities = false
+                Operations.complete(copy)
+            }
+        plugin.logger.debug("Restored ${schematic.region.volume} blocks of room '$identifier'")
+    }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package dev.munky.instantiated.dungeon.sstatic
 
+import com.sk89q.worldedit.extent.clipboard.Clipboard
+import com.sk89q.worldedit.extent.clipboard.io.ClipboardFormats
 import dev.munky.instantiated.common.structs.IdKey
 import dev.munky.instantiated.dungeon.interfaces.Format
 import dev.munky.instantiated.exception.DungeonExceptions
@@ -8,6 +10,7 @@ import dev.munky.instantiated.plugin
 import org.bukkit.Location
 import org.joml.Vector3f
 import java.io.File
+import java.io.FileInputStream
 
 class StaticFormat(
     override val identifier: IdKey,
@@ -17,6 +20,23 @@ class StaticFormat(
 
     override val instances : MutableSet<StaticInstance> = mutableSetOf()
     override val rooms : MutableMap<IdKey, StaticRoomFormat> = LinkedHashMap()
+
+    private var _template: Pair<File, Clipboard>? = null
+
+    /**
+     * The schematic as it is on disk, which rooms are reset back to. Read the first time it is needed, and again if [schematic] changes.
+     */
+    val template: Clipboard? get() = synchronized(this) {
+        val file = schematic ?: return null
+        _template?.takeIf { it.first == file }?.let { return it.second }
+        val format = ClipboardFormats.findByFile(file)
+            ?: throw DungeonExceptions.Generic.consume("No schematic found by file name '${file.name}'")
+        val clipboard = format.getReader(FileInputStream(file)).use { it.read() }
+        _template?.second?.close()
+        _template = file to clipboard
+        clipboard
+    }
+
     @Throws(InstantiationException::class)
     override fun instance(location: Location, option: Format.InstanceOption): StaticInstance {
         try{
@@ -14,13 +14,21 @@ import com.sk89q.worldedit.regions.CuboidRegion
 import com.sk89q.worldedit.regions.Region
 import com.sk89q.worldedit.session.ClipboardHolder
 import com.sk89q.worldedit.world.block.BlockTypes
-import dev.munky.instantiated.PluginState
 import dev.munky.instantiated.common.structs.IdKey
 import dev.munky.instantiated.common.util.asOptional
+import dev.munky.instantiated.common.util.log
+import dev.munky.instantiated.dungeon.DungeonKeys
 import dev.munky.instantiated.dungeon.DungeonManager
+import dev.munky.instantiated.dungeon.InstanceViewDistance
+import dev.munky.instantiated.dungeon.RoomIndex
+import dev.munky.instantiated.dungeon.checkpoint.BlockJournal
+import dev.munky.instantiated.dungeon.component.ComponentStates
 import dev.munky.instantiated.dungeon.interfaces.Instance
 import dev.munky.instantiated.dungeon.interfaces.RoomInstance
-import dev.munky.instantiated.dungeon.mob.Id2WeakDungeonMobMap
+import dev.munky.instantiated.dungeon.lifecycle.InstanceLifecycle
+import dev.munky.instantiated.dungeon.lifecycle.InstanceMembership
+import dev.munky.instantiated.dungeon.lifecycle.LifecycleState
+import dev.munky.instantiated.dungeon.mob.DungeonMobRegistry
 import dev.munky.instantiated.event.DungeonCacheEvent
 import dev.munky.instantiated.exception.DungeonException
 import dev.munky.instantiated.exception.DungeonExceptions
@@ -32,7 +40,7 @@ import io.papermc.paper.math.FinePosition
 import org.bukkit.Bukkit
 import org.bukkit.Location
 import org.bukkit.entity.Player
-import org.joml.Vector3f
+import org.joml.Vector3i
 import org.koin.core.component.get
 import java.io.FileInputStream
 import java.util.*
@@ -54,12 +62,11 @@ internal constructor(
     override var difficulty: Double = 1.0
     override val rooms: LinkedHashMap<IdKey, StaticRoomInstance> = LinkedHashMap()
     override var doorKeys = 0 // the number of keys that are left for the dungeon.
+    override val blockJournal = BlockJournal(Vector3i(locationInWorld.blockX, locationInWorld.blockY, locationInWorld.blockZ))
     /**
-     * Keys are the identifier of the room, values are
-     * weak maps of keys living entity and values dungeon mob.
-     * This inner map is Weak, and gives priority to garbage collection
+     * Living dungeon mobs, by entity id and by room
      */
-    override val activeMobs: Id2WeakDungeonMobMap = Id2WeakDungeonMobMap()
+    override val activeMobs: DungeonMobRegistry = DungeonMobRegistry()
     // player uuid mapped to locationInWorld before they were teleported in
     private val playerMap: MutableMap<UUID, Location> = HashMap()
     override val onlinePlayers : List<Player> get() {
@@ -70,120 +77,162 @@ internal constructor(
         return playerMap.keys.toList()
     }
     override val identifier : IdKey get() = format.identifier
+    override val lifecycle = InstanceLifecycle(this)
+    override val roomIndex = RoomIndex { rooms.values }
+    override val componentStates = ComponentStates()
+    override val membership = InstanceMembership(this)
+
     init{
-        val pasteResult = runCatching {
-            val schemfile = format.schematic
-            if (schemfile == null) {
-                val clipboard = CPUOptimizedClipboard(
-                    CuboidRegion(
-                        BlockVector3.ZERO,
-                        BlockVector3.at(10,10,10)
-                    )
+        format.instances.add(this) // holds the slot until FREE
+        lifecycle.transition(LifecycleState.MATERIALIZING, Schedulers.ASYNC, ::materializeFailed) {
+            pastedClipboard = Result.success(paste())
+        }
+        lifecycle.transition(LifecycleState.READY, Schedulers.SYNC) {
+            init()
+        }
+        lifecycle.then(Schedulers.SYNC) {
+            // nobody is coming, so dont wait around forever
+            if (lifecycle.state == LifecycleState.READY && membership.size == 0) membership.scheduleReap()
+        }
+    }
+
+    private fun paste(): Clipboard {
+        val schemfile = format.schematic
+        if (schemfile == null) {
+            val clipboard = CPUOptimizedClipboard(
+                CuboidRegion(
+                    BlockVector3.ZERO,
+                    BlockVector3.at(10,10,10)
                 )
-                return@runCatching clipboard
-            }
-            val clipboardFormat = ClipboardFormats.findByFile(schemfile)
-                ?: throw IllegalArgumentException("No schematic found by file name '${schemfile.name}'." +
-                        " Make sure it is a valid schematic file.")
-            var clipboard: Clipboard
-            val blockVector3 = BlockVector3.at(locationInWorld.x, locationInWorld.y, locationInWorld.z)
-            clipboardFormat.getReader(FileInputStream(schemfile)).use { clipboardReader ->
-                val editSession = WorldEdit.getInstance().newEditSessionBuilder()
-                    .world(BukkitAdapter.adapt(locationInWorld.world))
-                    .fastMode(true)
-                    .checkMemory(false)
-                    .build()
-                clipboard = clipboardReader.read()
+            )
+            return clipboard
+        }
+        val clipboardFormat = ClipboardFormats.findByFile(schemfile)
+            ?: throw IllegalArgumentException("No schematic found by file name '${schemfile.name}'." +
+                    " Make sure it is a valid schematic file.")
+        var clipboard: Clipboard
+        val blockVector3 = BlockVector3.at(locationInWorld.x, locationInWorld.y, locationInWorld.z)
+        clipboardFormat.getReader(FileInputStream(schemfile)).use { clipboardReader ->
+            val editSession = WorldEdit.getInstance().newEditSessionBuilder()
+                .world(BukkitAdapter.adapt(locationInWorld.world))
+                .fastMode(true)
+                .checkMemory(false)
+                .build()
+            clipboard = clipboardReader.read()
 
-                val origin = clipboard.origin
+            val origin = clipboard.origin
 
-                val holder = ClipboardHolder(clipboard)
-                    .createPaste(editSession)
-                    .copyEntities(false)
-                    .to(blockVector3)
-                    .ignoreAirBlocks(false)
+            val holder = ClipboardHolder(clipboard)
+                .createPaste(editSession)
+                .copyEntities(false)
+                .to(blockVector3)
+                .ignoreAirBlocks(false)
 
-                val operation: Operation = holder.build()
+            val operation: Operation = holder.build()
 
-                clipboard = editSession.lazyCopy(clipboard.region)
+            clipboard = editSession.lazyCopy(clipboard.region)
 
-                clipboard.origin = origin
-                Operations.complete(operation)
-                plugin.logger.debug("Injected instance '$identifier', modified ${clipboard.volume}")
-                editSession.close()
-                if (!this.cache.wasCached)
-                    format.instances.add(this)
-            }
-            clipboard
+            clipboard.origin = origin
+            Operations.complete(operation)
+            plugin.logger.debug("Injected instance '$identifier', modified ${clipboard.volume}")
+            editSession.close()
         }
-        pastedClipboard = pasteResult
-        pastedClipboard.onSuccess {
-            init()
-        }.onFailure {
-            runCatching{ // do nothing with this exception
-                this.remove(
-                    Instance.RemovalReason.EXCEPTION_THROWN,
-                    plugin.state.isState(PluginState.PROCESSING) && cache && this.cache.wasCached
-                )
+        return clipboard
+    }
+
+    /**
+     * Puts every block changed since the paste back the way the schematic has it, and forgets them,
+     * so a re-cached instance is as good as a freshly pasted one.
+     */
+    private fun restoreJournal() {
+        val template = format.template
+        if (template != null) {
+            val world = locationInWorld.world
+            val origin = locationInWorld.toBlockVector3()
+            blockJournal.forEachRelative { x, y, z, _ ->
+                val block = template.getBlock(template.origin.add(x, y, z))
+                world.setBlockData(origin.x() + x, origin.y() + y, origin.z() + z, BukkitAdapter.adapt(block))
             }
-            throw it
+            plugin.logger.debug("Restored ${blockJournal.size} changed blocks of '$identifier'")
         }
+        blockJournal.clear()
+    }
+
+    private fun materializeFailed(t: Throwable) {
+        DungeonExceptions.Instantiation.consume(identifier, t).log("Could not paste instance of '$identifier'")
+        pastedClipboard = Result.failure(t)
+        scrub(Instance.RemovalReason.EXCEPTION_THROWN)
     }
 
     fun init() {
         for (room in format.rooms.values) {
             rooms[room.identifier] = room.instance(this)
         }
+        roomIndex.invalidate()
+    }
+
+    /**
+     * Puts [room] into [rooms], keeping [roomIndex] up to date.
+     */
+    fun addRoom(room: StaticRoomInstance) {
+        rooms[room.identifier] = room
+        roomIndex.invalidate()
     }
 
     private fun getClosestRoom(player: Player): RoomInstance? =
-        getRoomAt(player.location)
-            ?: run {
-                val playerVector = Vector3f(player.x.toFloat(), player.y.toFloat(), player.z.toFloat())
-                rooms.values
-                    .map {
-                        it to it.box.center.distance(playerVector)
-                    }
-                    .filter { it.second < 50 }
-                    .sortedWith { o1, o2 -> (o1.second - o2.second).toInt() }
-                    .map { it.first }
-                    .firstOrNull()
-            }
+        getRoomAt(player.location) ?: roomIndex.closestRoom(player.x, player.y, player.z, 50f)
 
-    override fun getRoomAt(location: FinePosition): RoomInstance? {
-        return rooms.values.firstOrNull { p ->
-            p.box.contains(location.toVector3f)
-        }
-    }
+    override fun getRoomAt(location: FinePosition): RoomInstance? = roomIndex.roomAt(location.x(), location.y(), location.z())
 
     @Throws(PhysicalRemovalException::class)
     override fun remove(context: Instance.RemovalReason, cache: Boolean) {
-        removePlayers()
-        for (room in rooms.values) {
-            room.remove()
-        }
-        rooms.clear()
-        removeMobs() // just in case type thing
-        if (this.cache.wasCached && cache && plugin.state.isSafe){
-            val cacheEvent = DungeonCacheEvent(this,locationInWorld)
-            cacheEvent.callEvent()
-            if (cacheEvent.isCancelled){
-                format.instances.remove(this)
-                removePhysical(context)
-                return
+        lifecycle.transition(LifecycleState.DRAINING, Schedulers.SYNC, {
+            it.log("Could not drain instance of '$identifier', removing it instead")
+            runCatching { removeMobs() }
+            scrub(context)
+        }) {
+            removePlayers()
+            for (room in rooms.values) {
+                room.remove()
             }
-            plugin.logger.debug("Re-caching instance of '$identifier' instead of explicit removal")
-            for (room in rooms) {
-                room.value.remove()
+            rooms.clear()
+            roomIndex.invalidate()
+            removeMobs() // just in case type thing
+        }
+        lifecycle.then(Schedulers.SYNC) {
+            // skipped, already failed, or already decided by an earlier removal
+            if (lifecycle.state != LifecycleState.DRAINING || lifecycle.target != LifecycleState.DRAINING) return@then
+            if (this.cache.wasCached && cache && plugin.state.isSafe){
+                val cacheEvent = DungeonCacheEvent(this,locationInWorld)
+                cacheEvent.callEvent()
+                if (cacheEvent.isCancelled){
+                    scrub(context)
+                    return@then
+                }
+                plugin.logger.debug("Re-caching instance of '$identifier' instead of explicit removal")
+                lifecycle.transition(LifecycleState.READY, Schedulers.SYNC) {
+                    restoreJournal()
+                    componentStates.reset()
+                    init()
+                    this.cache = Instance.CacheState.CACHED
+                    plugin.logger.info("Re-Cached instance of '$identifier'")
+                }
+            }else{
+                scrub(context)
             }
-            init()
-            this.cache = Instance.CacheState.CACHED
-            plugin.logger.info("Re-Cached instance of '$identifier'")
-        }else{
+        }
+    }
+
+    private fun scrub(context: Instance.RemovalReason) {
+        lifecycle.transition(LifecycleState.SCRUBBING, Schedulers.ASYNC, {
+            it.log("Could not scrub instance of '$identifier'")
+            format.instances.remove(this)
+        }) {
+            if (pastedClipboard.isSuccess) removePhysical(context)
+        }
+        lifecycle.transition(LifecycleState.FREE, Schedulers.SYNC) {
             format.instances.remove(this)
-            removePhysical(context)
         }
-        System.gc()
     }
 
     private fun removePhysical(context: Instance.RemovalReason) {
@@ -223,12 +272,10 @@ internal constructor(
     }
 
     private fun removeMobs() {
-        for (mobPair in activeMobs.values) {
-            for (living in mobPair.keys) try {
-                living.remove()
-            } catch (e: Exception) {
-                plugin.logger.warning("Error while cleaning up '$identifier': ${e.stackMessage()}")
-            }
+        for (entry in activeMobs.all()) try {
+            entry.entity.remove()
+        } catch (e: Exception) {
+            plugin.logger.warning("Error while cleaning up '$identifier': ${e.stackMessage()}")
         }
         if (pastedClipboard.isSuccess) {
             val region: Region = pastedClipboard.getOrThrow().region.clone()
@@ -253,6 +300,7 @@ internal constructor(
             }
         }
         activeMobs.clear()
+        DungeonKeys.forget(this)
     }
 
     private fun removePlayers() {
@@ -264,9 +312,12 @@ internal constructor(
                     online.teleport(teleportLocation!!)
             }
             playerMap.remove(player)
+            MANAGER.untrackPlayer(player, this)
+            InstanceViewDistance.restore(player)
             plugin.logger.debug("Removed player '$player' from dungeon '$identifier'")
         }
         playerMap.clear()
+        membership.clear()
     }
 
     private fun handleCurrentDungeon(player: Player): Location {
@@ -276,20 +327,33 @@ internal constructor(
     }
 
     override fun addPlayer(player: Player){
+        when (lifecycle.state) {
+            LifecycleState.READY, LifecycleState.ACTIVE -> admit(player)
+            LifecycleState.ALLOCATING, LifecycleState.MATERIALIZING -> lifecycle.then(Schedulers.SYNC) {
+                // still being pasted, so let them in once it is ready
+                if (player.isOnline && !lifecycle.state.isLeaving) admit(player)
+            }
+            else -> plugin.logger.debug("Player (${player.name}) cannot join '$identifier' because it is ${lifecycle.state}")
+        }
+    }
+
+    private fun admit(player: Player){
         var location = handleCurrentDungeon(player)
         if (location.world == locationInWorld.world) {
             val maybeLocation = playerMap[player.uniqueId].asOptional
             location = if (maybeLocation.isPresent) maybeLocation.get() else Bukkit.getWorlds().first().spawnLocation
         }
-        playerMap[player.uniqueId] = location
+        if (playerMap.put(player.uniqueId, location) == null) membership.acquire()
+        MANAGER.trackPlayer(player.uniqueId, this)
         plugin.logger.debug("Player (${player.name}) added to '$identifier'")
         spawnPlayer(player)
         if (cache.isCached) cache = Instance.CacheState.PREVIOUSLY_CACHED
+        if (lifecycle.target == LifecycleState.READY) lifecycle.transition(LifecycleState.ACTIVE, Schedulers.SYNC)
     }
 
     private fun movePlayerOut(player: Player){
         val teleportLocation = playerLocations[player.uniqueId]
-        playerMap.remove(player.uniqueId)
+        forget(player.uniqueId)
         if (
             !player.isOnline
             || teleportLocation == null
@@ -298,16 +362,16 @@ internal constructor(
         player.teleport(teleportLocation)
     }
 
+    private fun forget(player: UUID) {
+        if (playerMap.remove(player) != null) membership.release() // reaps the instance once it stays empty
+        MANAGER.untrackPlayer(player, this)
+        InstanceViewDistance.restore(player)
+    }
+
     override fun removePlayer(player: UUID) {
         val onlinePlayer = Bukkit.getPlayer(player)
         if (onlinePlayer != null) movePlayerOut(onlinePlayer)
+        else forget(player)
         plugin.logger.debug("Removed player '${onlinePlayer?.name ?: player}' from dungeon '$identifier'")
-        if (players.isEmpty() && plugin.state.isSafe) {
-            try {
-                this.remove(Instance.RemovalReason.NO_PLAYERS_LEFT, true)
-            } catch (e: DungeonException) {
-                plugin.logger.severe("Could not remove instance:${e.stackMessage()}")
-            }
-        }
     }
 }
\ No newline at end of file
@@ -1,12 +1,21 @@
 package dev.munky.instantiated.dungeon.sstatic
 
+import com.sk89q.worldedit.WorldEdit
+import com.sk89q.worldedit.bukkit.BukkitAdapter
+import com.sk89q.worldedit.function.operation.ForwardExtentCopy
+import com.sk89q.worldedit.function.operation.Operations
+import com.sk89q.worldedit.math.BlockVector3
+import com.sk89q.worldedit.regions.CuboidRegion
 import dev.munky.instantiated.common.structs.IdKey
 import dev.munky.instantiated.data.loader.ComponentStorage
 import dev.munky.instantiated.dungeon.component.NeedsInitialized
 import dev.munky.instantiated.dungeon.component.NeedsShutdown
 import dev.munky.instantiated.dungeon.component.TraitContext
 import dev.munky.instantiated.dungeon.interfaces.RoomInstance
+import dev.munky.instantiated.dungeon.mob.MobSpawnQueue
+import dev.munky.instantiated.exception.DungeonExceptions
 import dev.munky.instantiated.plugin
+import dev.munky.instantiated.util.toBlockVector3
 import dev.munky.instantiated.util.toLocation
 import org.joml.Vector3f
 import org.joml.Vector3i
@@ -30,14 +39,37 @@ class StaticRoomInstance(
         }
     }
 
+    override fun restoreBlocks() {
+        val template = parent.format.template
+            ?: throw DungeonExceptions.Generic.consume("'${parent.identifier}' has no schematic to reset '$identifier' from")
+        // clipboard space = world space - where the clipboard origin was pasted + the clipboard origin
+        val pastedAt = parent.locationInWorld.toBlockVector3()
+        val toClipboard = template.origin.subtract(pastedAt)
+        val min = BlockVector3.at(box.minimum.x.toDouble(), box.minimum.y.toDouble(), box.minimum.z.toDouble())
+            .add(toClipboard).getMaximum(template.region.minimumPoint)
+        val max = BlockVector3.at(box.maximum.x.toDouble(), box.maximum.y.toDouble(), box.maximum.z.toDouble())
+            .add(toClipboard).getMinimum(template.region.maximumPoint)
+        val region = CuboidRegion(min, max)
+        WorldEdit.getInstance().newEditSessionBuilder()
+            .world(BukkitAdapter.adapt(parent.locationInWorld.world))
+            .fastMode(true)
+            .checkMemory(false)
+            .build().use { session ->
+                val copy = ForwardExtentCopy(template, region, template.origin, session, pastedAt)
+                copy.isCopyingEntities = false
+                Operations.complete(copy)
+            }
+        plugin.logger.debug("Restored ${region.volume} blocks of room '$identifier'")
+    }
+
     fun remove() {
+        MobSpawnQueue.dropRoom(this)
         val components = plugin.get<ComponentStorage>()[this.format] ?: ArrayList()
         for (c in components){
             if (c is NeedsShutdown) c.shutdown(TraitContext(this, null))
         }
-        parent.activeMobs[identifier].keys.forEach {
-            it.remove() // mark living entity for removal if present
+        parent.activeMobs.removeRoom(identifier).forEach {
+            it.entity.remove() // mark living entity for removal if present
         }
-        parent.activeMobs[identifier].clear()
     }
 }
\ No newline at end of file
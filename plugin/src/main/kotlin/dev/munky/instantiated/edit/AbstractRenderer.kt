@@ -6,7 +6,6 @@ import dev.munky.instantiated.common.structs.Box
 import dev.munky.instantiated.common.util.copy
 import dev.munky.instantiated.common.util.log
 import dev.munky.instantiated.data.IntraDataStores.EntityIntraData.getIntraData
-import dev.munky.instantiated.data.IntraDataStores.EntityIntraData.setIntraData
 import dev.munky.instantiated.data.config.TheConfig
 import dev.munky.instantiated.data.loader.ComponentStorage
 import dev.munky.instantiated.dungeon.DungeonManager
@@ -309,7 +308,6 @@ class TextRenderer: KoinComponent {
                 display.isVisibleByDefault = false
                 editor.showEntity(plugin, display)
                 display.persistentDataContainer.set(DungeonManager.INIT_TIME, PersistentDataType.LONG, plugin.initTime)
-                display.setIntraData(DungeonManager.NO_DESPAWN_ENTITY, Unit)
             }
             future.complete(display)
         }
@@ -75,13 +75,13 @@ object BuiltInQuestions{
                         Material.STONE
                     )
                 )
-                instance.rooms[room.identifier] = room
+                instance.addRoom(room)
                 it.sendMessage("Added room '$name' to dungeon, with some default values".asComponent)
             },
             QuestionElement.ListOf("Remove room",
                 instance.rooms.map { room ->
                     QuestionElement.Clickable(room.key.key){
-                        instance.rooms.remove(room.key)
+                        instance.removeRoom(room.key)
                         it.sendMessage("Removed room ${room.key.key}".asComponent)
                     }
                 }.toList()
@@ -98,14 +98,14 @@ object ChatQuestions{
                         Material.STONE
                     )
                 )
-                dungeon.rooms[room.identifier] = room
+                dungeon.addRoom(room)
                 audience.sendMessage("Added room '$name' to dungeon, with some default values".fromMini)
             }
         ),
         ComponentQuestion("Remove a room".fromMini,
             dungeon.rooms.map { room->
                 ComponentOption(room.value.identifier.key.fromMini){
-                    dungeon.rooms.remove(room.key)
+                    dungeon.removeRoom(room.key)
                     it.sendMessage("Removed room ${room.key.key}".fromMini)
                 }
             }
@@ -90,6 +90,7 @@ sealed interface EditTool{
             val box = getCuboidFromNewCorner(click.instancedRoom.format.box, interactionVector)
             click.instancedRoom.box = box + click.instancedRoom.inWorldLocation.toVector3f
             click.instancedRoom.format.box = box // update the master 'template'
+            click.instance.roomIndex.invalidate()
             click.event.player.sendMessage("<green>Added vertex at ${interactionVector.x},${interactionVector.y},${interactionVector.z}".asComponent)
             plugin.logger.debug(
                 "Added vertex at " + interaction +
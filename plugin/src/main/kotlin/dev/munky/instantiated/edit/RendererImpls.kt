@@ -3,7 +3,6 @@ package dev.munky.instantiated.edit
 import com.destroystokyo.paper.ParticleBuilder
 import dev.munky.instantiated.common.util.copy
 import dev.munky.instantiated.common.util.log
-import dev.munky.instantiated.data.IntraDataStores.EntityIntraData.setIntraData
 import dev.munky.instantiated.data.config.TheConfig
 import dev.munky.instantiated.dungeon.DungeonManager
 import dev.munky.instantiated.exception.DungeonExceptions.Companion.Generic
@@ -162,7 +161,6 @@ class BlockDisplayRenderer: AbstractRenderer() {
                         display.isVisibleByDefault = false
                         editor.showEntity(plugin, display)
                         display.persistentDataContainer.set(DungeonManager.INIT_TIME, PersistentDataType.LONG, plugin.initTime)
-                        display.setIntraData(DungeonManager.NO_DESPAWN_ENTITY, Unit)
                     }catch (t: Throwable){ future.completeExceptionally(t) }
                 }
                 future.complete(spawned)